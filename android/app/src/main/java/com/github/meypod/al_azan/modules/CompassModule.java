@@ -2,11 +2,17 @@ package com.github.meypod.al_azan.modules;
 
 import androidx.annotation.NonNull;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 import com.github.meypod.al_azan.utils.CompassSensor;
+import com.github.meypod.al_azan.utils.CompassStats;
+import com.github.meypod.al_azan.utils.MathUtils;
+import com.github.meypod.al_azan.utils.SensorStrategy;
 
 public class CompassModule extends ReactContextBaseJavaModule {
     CompassModule(ReactApplicationContext context) {
@@ -20,13 +26,44 @@ public class CompassModule extends ReactContextBaseJavaModule {
     }
 
     private int listenerCount = 0;
+    // listeners of the events that carry the heading, see isHeadingEvent()
+    private int headingListenerCount = 0;
     private static int updateRateMs = 25; // ms
+    private static int batchingLatencyMs = 0; // ms, 0 is disabled
+    private static float deadBandDegrees = 0.5f;
+    private static int minEmitIntervalMs = 0; // ms
+    private static int maxEmitIntervalMs = 1000; // ms, 0 is disabled
+    private static boolean adaptiveRate = false;
+    private static SensorStrategy sensorStrategy = SensorStrategy.PRECISION;
+    private static int smoothingMs = CompassSensor.DEFAULT_SMOOTHING_MS;
+    private static boolean headingEventsEnabled = true;
+    private static boolean qiblaMode = false;
+    private static float qiblaAlignedDegrees = 3f;
+    private static boolean qiblaHaptics = false;
+    // last location from setLocation, applied to a sensor created later on
+    private static double[] location;
     private CompassSensor compassSensor;
+    private final double[] latestHeading = new double[4];
+
+    private void createSensor() {
+        compassSensor = new CompassSensor(getReactApplicationContext());
+        compassSensor.setStrategy(sensorStrategy);
+        compassSensor.setSmoothing(smoothingMs);
+        compassSensor.setHeadingEventsEnabled(headingEventsEnabled);
+        compassSensor.setHasHeadingListeners(headingListenerCount > 0);
+        compassSensor.setQiblaMode(qiblaMode, qiblaAlignedDegrees, qiblaHaptics);
+        if (location != null) {
+            compassSensor.updateMagneticDeclination(location[0], location[1], location[2]);
+        }
+        compassSensor.setBatching(batchingLatencyMs);
+        compassSensor.setDeadBand(deadBandDegrees, minEmitIntervalMs, maxEmitIntervalMs);
+        compassSensor.setAdaptiveRate(adaptiveRate);
+    }
 
     @ReactMethod
     public void addListener(String eventName) {
         if (compassSensor == null) {
-            compassSensor = new CompassSensor(getReactApplicationContext());
+            createSensor();
         }
 
         if (listenerCount == 0) {
@@ -35,14 +72,41 @@ public class CompassModule extends ReactContextBaseJavaModule {
 
         if (eventName.equals("accuracyChanged")) {
             compassSensor.setAccuracyReceived(false);
+        } else if (isHeadingEvent(eventName)) {
+            headingListenerCount += 1;
+            compassSensor.setHasHeadingListeners(true);
         }
 
         listenerCount += 1;
     }
 
+    private static boolean isHeadingEvent(String eventName) {
+        return eventName.equals("heading") || eventName.equals("headings")
+                || eventName.equals("qiblaAngle") || eventName.equals("qiblaAngles");
+    }
+
+    /**
+     * Called by JS when it removes a listener of a heading event, as removeListeners does not
+     * tell which event the listener was for. Must be followed by removeListeners as usual.
+     */
+    @ReactMethod
+    public void removeHeadingListener() {
+        if (headingListenerCount <= 0) {
+            return;
+        }
+        headingListenerCount -= 1;
+        if (headingListenerCount == 0 && compassSensor != null) {
+            compassSensor.setHasHeadingListeners(false);
+        }
+    }
+
     @ReactMethod
     public void removeListeners(Integer count) {
-        listenerCount -= count;
+        if (listenerCount <= 0) {
+            return;
+        }
+        // never below 0, otherwise the next addListener would not start the sensor
+        listenerCount = Math.max(0, listenerCount - count);
         if (listenerCount == 0) {
             if (compassSensor != null) {
                 compassSensor.stop();
@@ -50,6 +114,53 @@ public class CompassModule extends ReactContextBaseJavaModule {
         }
     }
 
+    /**
+     * Adds a subscriber that gets "subscriptionHeading" events, {id, heading}, at most every
+     * rateMs. The sensor runs at the fastest rate of all subscribers and of "heading" events,
+     * and each subscriber only gets the events due at its own rate.
+     * Resolves with the id of the subscriber, to pass to {@link #unsubscribe(int)}.
+     */
+    @ReactMethod
+    public void subscribe(int rateMs, Promise promise) {
+        if (compassSensor == null) {
+            createSensor();
+        }
+        promise.resolve(compassSensor.addSubscriber(rateMs));
+    }
+
+    /**
+     * Resolves with {heading, accuracy, samples}, the circular mean of a few readings, without
+     * keeping the sensor running. Rejects if there is no reading within timeoutMs.
+     */
+    @ReactMethod
+    public void getHeadingOnce(int samples, int timeoutMs, Promise promise) {
+        if (compassSensor == null) {
+            createSensor();
+        }
+        compassSensor.getHeadingOnce(samples, timeoutMs, new CompassSensor.HeadingCallback() {
+            @Override
+            public void onHeading(float heading, int accuracy, int sampleCount) {
+                WritableMap map = Arguments.createMap();
+                map.putDouble("heading", heading);
+                map.putInt("accuracy", accuracy);
+                map.putInt("samples", sampleCount);
+                promise.resolve(map);
+            }
+
+            @Override
+            public void onError(String code, String message) {
+                promise.reject(code, message);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void unsubscribe(int id) {
+        if (compassSensor != null) {
+            compassSensor.removeSubscriber(id);
+        }
+    }
+
     @ReactMethod
     public void setUpdateRate(int ms) {
         updateRateMs = ms;
@@ -58,18 +169,205 @@ public class CompassModule extends ReactContextBaseJavaModule {
         }
     }
 
+    /**
+     * Lets the sensor batch readings for up to the given latency, and delivers them as
+     * arrays of (timestamp, heading) in "headings" events once per frame. 0 disables batching.
+     */
+    @ReactMethod
+    public void setBatching(int maxReportLatencyMs) {
+        batchingLatencyMs = maxReportLatencyMs;
+        if (this.compassSensor != null) {
+            compassSensor.setBatching(maxReportLatencyMs);
+        }
+    }
+
+    /**
+     * When enabled, "qiblaAngle" events with the angle to turn towards the Qibla are emitted
+     * instead of "heading" events, using the location given to {@link #setLocation}. Getting
+     * within alignedDegrees of the Qibla, or leaving it, emits "qiblaAligned" with an optional
+     * vibration.
+     */
+    @ReactMethod
+    public void setQiblaMode(boolean enabled, double alignedDegrees, boolean haptics) {
+        qiblaMode = enabled;
+        qiblaAlignedDegrees = (float) alignedDegrees;
+        qiblaHaptics = haptics;
+        if (this.compassSensor != null) {
+            compassSensor.setQiblaMode(enabled, qiblaAlignedDegrees, haptics);
+        }
+    }
+
+    /**
+     * Returns the latest heading as [heading, accuracy, timestamp, sensor timestamp] with both
+     * timestamps in ms, or null if there is none yet. The sensor timestamp only changes with a new
+     * reading. Synchronous, so that JS can read it in an animation frame without waiting for an
+     * event.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableArray getLatestHeading() {
+        if (compassSensor == null || !compassSensor.getLatestHeading(latestHeading)) {
+            return null;
+        }
+        WritableArray result = Arguments.createArray();
+        for (double value : latestHeading) {
+            result.pushDouble(value);
+        }
+        return result;
+    }
+
+    /**
+     * Turns the "heading" and "headings" events off while JS polls {@link #getLatestHeading()}.
+     */
+    @ReactMethod
+    public void setHeadingEventsEnabled(boolean enabled) {
+        headingEventsEnabled = enabled;
+        if (this.compassSensor != null) {
+            compassSensor.setHeadingEventsEnabled(enabled);
+        }
+    }
+
+    /**
+     * Sets the time constant of the heading smoothing in ms, 0 disables smoothing.
+     */
+    @ReactMethod
+    public void setSmoothing(int timeConstantMs) {
+        smoothingMs = timeConstantMs;
+        if (this.compassSensor != null) {
+            compassSensor.setSmoothing(timeConstantMs);
+        }
+    }
+
+    /**
+     * Selects the sensors used for the heading: "precision" (rotation vector), "lowPower"
+     * (geomagnetic rotation vector) or "fusion" (accelerometer and magnetometer).
+     */
+    @ReactMethod
+    public void setSensorStrategy(String strategy) {
+        sensorStrategy = SensorStrategy.fromJsName(strategy);
+        if (this.compassSensor != null) {
+            compassSensor.setStrategy(sensorStrategy);
+        }
+    }
+
+    /**
+     * Resolves with the strategy in use after falling back for missing sensors, or null if the
+     * compass is not running.
+     */
+    @ReactMethod
+    public void getActiveSensorStrategy(Promise promise) {
+        SensorStrategy active = compassSensor != null ? compassSensor.getActiveStrategy() : null;
+        promise.resolve(active != null ? active.jsName : null);
+    }
+
+    /**
+     * When enabled, the sensor is slowed down while the device is stationary.
+     */
+    @ReactMethod
+    public void setAdaptiveRate(boolean enabled) {
+        adaptiveRate = enabled;
+        if (this.compassSensor != null) {
+            compassSensor.setAdaptiveRate(enabled);
+        }
+    }
+
+    /**
+     * Headings that changed by less than deadBandDegrees are not emitted, except once every
+     * maxIntervalMs. No heading is emitted sooner than minIntervalMs after the previous one.
+     */
+    @ReactMethod
+    public void setDeadBand(double degrees, int minIntervalMs, int maxIntervalMs) {
+        deadBandDegrees = (float) degrees;
+        minEmitIntervalMs = minIntervalMs;
+        maxEmitIntervalMs = maxIntervalMs;
+        if (this.compassSensor != null) {
+            compassSensor.setDeadBand(deadBandDegrees, minIntervalMs, maxIntervalMs);
+        }
+    }
+
+    /**
+     * Resolves with the number of headings suppressed by the dead-band since the last call.
+     */
+    @ReactMethod
+    public void getSuppressedHeadingCount(Promise promise) {
+        promise.resolve(compassSensor != null ? (double) compassSensor.getSuppressedCount() : 0d);
+    }
+
     @ReactMethod
     public void setLocation(double latitude, double longitude, double altitude) {
+        location = new double[]{latitude, longitude, altitude};
         if (compassSensor != null) {
             compassSensor.updateMagneticDeclination(latitude, longitude, altitude);
         }
     }
 
+    @ReactMethod
+    public void getDeclinationCacheStats(Promise promise) {
+        long[] stats = MathUtils.getDeclinationCacheStats();
+        WritableMap map = Arguments.createMap();
+        map.putDouble("hits", stats[0]);
+        map.putDouble("misses", stats[1]);
+        map.putDouble("size", stats[2]);
+        promise.resolve(map);
+    }
+
+    @ReactMethod
+    public void resetDeclinationCache() {
+        MathUtils.resetDeclinationCache();
+    }
+
+    /**
+     * Resolves with the counters of the sensor pipeline since the last {@link #resetStats()},
+     * or null if the compass was never started.
+     */
+    @ReactMethod
+    public void getStats(Promise promise) {
+        if (compassSensor == null) {
+            promise.resolve(null);
+            return;
+        }
+        CompassStats stats = compassSensor.getStats();
+        WritableMap map = Arguments.createMap();
+        map.putDouble("received", stats.getReceived());
+        map.putDouble("throttled", stats.getThrottled());
+        map.putDouble("suppressed", stats.getSuppressed());
+        map.putDouble("emitted", stats.getEmitted());
+        map.putDouble("receivedRate", stats.getReceivedRate());
+        map.putDouble("emittedRate", stats.getEmittedRate());
+        map.putDouble("requestedRate", 1000.0 / updateRateMs);
+        map.putDouble("averageLatencyMs", stats.getAverageLatencyMs());
+        map.putDouble("maxLatencyMs", stats.getMaxLatencyMs());
+        WritableArray bucketLimits = Arguments.createArray();
+        for (int limit : CompassStats.LATENCY_BUCKETS_MS) {
+            bucketLimits.pushInt(limit);
+        }
+        map.putArray("latencyBucketsMs", bucketLimits);
+        WritableArray histogram = Arguments.createArray();
+        for (long count : stats.getLatencyHistogram()) {
+            histogram.pushDouble(count);
+        }
+        map.putArray("latencyHistogram", histogram);
+        map.putDouble("averageUpdateMs", stats.getAverageUpdateMs());
+        map.putDouble("maxUpdateMs", stats.getMaxUpdateMs());
+        map.putDouble("registrations", stats.getRegistrations());
+        map.putDouble("teardowns", stats.getTeardowns());
+        promise.resolve(map);
+    }
+
+    @ReactMethod
+    public void resetStats() {
+        if (compassSensor != null) {
+            compassSensor.getStats().reset();
+        }
+    }
+
     @Override
     public void onCatalystInstanceDestroy() {
         if (compassSensor != null) {
+            compassSensor.cancelHeadingOnce();
             compassSensor.stop();
             compassSensor = null;
         }
+        listenerCount = 0;
+        headingListenerCount = 0;
     }
 }
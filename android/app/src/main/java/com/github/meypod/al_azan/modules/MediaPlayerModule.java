@@ -21,13 +21,18 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableNativeMap;
 import com.github.meypod.al_azan.utils.Async;
+import com.github.meypod.al_azan.utils.SoundCache;
 import com.github.meypod.al_azan.utils.Utils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MediaPlayerModule extends ReactContextBaseJavaModule implements ServiceConnection {
 
   public static ReactApplicationContext ctx;
@@ -124,6 +129,24 @@ public class MediaPlayerModule extends ReactContextBaseJavaModule implements Ser
     promise.resolve(null);
   }
 
+  @ReactMethod
+  public void rampVolume(ReadableMap options, Promise promise) {
+    Bundle bundle = Arguments.toBundle(options);
+    if (bundle == null) {
+      promise.reject("ERROR", "arguments cannot be null");
+      return;
+    }
+    if (mediaPlayerService != null) {
+      float from = bundle.containsKey("from") ? (float) bundle.getDouble("from") : Float.NaN;
+      mediaPlayerService.rampVolume(from,
+          (float) bundle.getDouble("to", 1),
+          (long) bundle.getDouble("durationMs", 0),
+          "perceptual".equals(bundle.getString("curve")),
+          bundle.getBoolean("stopWhenDone", false));
+    }
+    promise.resolve(null);
+  }
+
   @ReactMethod
   public void setDataSource(ReadableMap data, Promise promise) {
     Bundle bundle = Arguments.toBundle(data);
@@ -132,22 +155,58 @@ public class MediaPlayerModule extends ReactContextBaseJavaModule implements Ser
       return;
     }
     if (mediaPlayerService != null) {
-      Uri uri;
-      int resourceId = Utils.getRawResourceId(ctx, bundle, "uri");
-      if (resourceId == 0) {
-        uri = Utils.getUri(ctx, bundle, "uri");
-      } else {
-        uri = Uri.parse(RAW_RESOURCE_PREFIX + resourceId);
-      }
       boolean isLoopUri = bundle.getBoolean("loop", false);
       boolean preferExternalDevice = bundle.getBoolean("preferExternalDevice", false);
+      long triggerTimeMs = (long) bundle.getDouble("triggerTimeMs", 0);
       // uri can be null
-      mediaPlayerService.setDataSource(uri, isLoopUri, preferExternalDevice, promise);
+      mediaPlayerService.setDataSource(getUri(bundle), isLoopUri, preferExternalDevice, triggerTimeMs, promise);
     } else {
       promise.reject("ERROR", "MediaPlayer is not set up yet.");
     }
   }
 
+  /** decodes the sound in the background so that playing it later needs no decoding */
+  @ReactMethod
+  public void cacheSound(ReadableMap data, Promise promise) {
+    Bundle bundle = Arguments.toBundle(data);
+    if (bundle == null) {
+      promise.reject("ERROR", "arguments cannot be null");
+      return;
+    }
+    Uri uri = getUri(bundle);
+    if (uri != null) {
+      SoundCache.getInstance(ctx).cache(uri);
+    }
+    promise.resolve(null);
+  }
+
+  private static Uri getUri(Bundle bundle) {
+    int resourceId = Utils.getRawResourceId(ctx, bundle, "uri");
+    if (resourceId == 0) {
+      return Utils.getUri(ctx, bundle, "uri");
+    }
+    return Uri.parse(RAW_RESOURCE_PREFIX + resourceId);
+  }
+
+  @ReactMethod
+  public void setQueue(ReadableArray items, boolean preferExternalDevice, Promise promise) {
+    if (mediaPlayerService == null) {
+      promise.reject("ERROR", "MediaPlayer is not set up yet.");
+      return;
+    }
+    List<Uri> uris = new ArrayList<>();
+    for (int i = 0; i < items.size(); i++) {
+      Bundle bundle = Arguments.toBundle(items.getMap(i));
+      if (bundle == null) {
+        promise.reject("ERROR", "queue items cannot be null");
+        return;
+      }
+      // uri can be null
+      uris.add(getUri(bundle));
+    }
+    mediaPlayerService.setQueue(uris, preferExternalDevice, promise);
+  }
+
   @ReactMethod
   public void getState(Promise promise) {
     String state = "stopped";
@@ -15,28 +15,43 @@ import android.media.AudioAttributes;
 import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
+import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
+import android.media.MediaTimestamp;
 import android.media.RingtoneManager;
+import android.media.VolumeShaper;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
+import android.util.Log;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.core.content.ContextCompat;
 
 import com.facebook.react.HeadlessJsTaskService;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.jstasks.HeadlessJsTaskConfig;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.github.meypod.al_azan.ReactUtils;
 import com.github.meypod.al_azan.VolumeChangeReceiver;
+import com.github.meypod.al_azan.utils.SoundCache;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -50,6 +65,13 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
 
   private static final long LOOP_SOUND_TIMER_LIMIT = 5 * 60 * 1000;
 
+  private static final String TAG = "MediaPlayerService";
+  /** how often and how long to look for the first audio frame after start, for the start latency */
+  private static final long FIRST_FRAME_POLL_MS = 5;
+  private static final long FIRST_FRAME_TIMEOUT_MS = 2000;
+  /** step of volume ramps that are not done by a VolumeShaper */
+  private static final long RAMP_STEP_MS = 50;
+  private static final int RAMP_CURVE_POINTS = 16;
 
   private MediaPlayer player;
   private boolean wasPlaying = false;
@@ -64,6 +86,54 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
   private int currentState = TelephonyManager.CALL_STATE_IDLE;
   private VolumeChangeReceiver volumeChangeReceiver;
 
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  // for the start latency: when the sound was asked for, and when the alarm that plays it was due
+  private long playRequestedAtMs;
+  private long playTriggeredAtMs;
+  private Runnable firstFramePoll;
+
+  // short non looping sounds play through a clip player, which outlives the service so that the
+  // clips stay decoded between plays. see ShortClipPlayer
+  private static ShortClipPlayer clipPlayer;
+  private static final Map<Uri, Long> durationsMs = new HashMap<>();
+  private int clipSoundId = 0;
+  private long clipDurationMs;
+  private long clipEndsAtMs = 0;
+  private long clipRemainingMs = 0;
+  private final Runnable clipCompletionRunnable = () -> {
+    stopClip();
+    onCompletion(false);
+  };
+
+  // volume ramp, a level from 0 to 1 applied on top of the volume given to setVolume()
+  private float volume = 1f;
+  private float rampFrom = 1f;
+  private float rampTo = 1f;
+  private long rampStartMs;
+  private long rampDurationMs;
+  private boolean rampPerceptual;
+  private boolean rampStopWhenDone;
+  private boolean rampRunning = false;
+  // when the ramp was held by pause(), 0 if it is not held
+  private long rampPausedAtMs = 0;
+  private VolumeShaper volumeShaper;
+  private final Runnable rampStepRunnable = this::rampStep;
+  private final Runnable rampDoneRunnable = this::rampDone;
+
+  // gapless queue set by setQueue(), the next item is prepared while the current one plays and
+  // linked with setNextMediaPlayer()
+  private final List<Uri> queue = new ArrayList<>();
+  private boolean queuePreferExternalDevice;
+  private int queueIndex = -1;
+  private int queueStartedIndex = -1;
+  private boolean playerPrepared = false;
+  private boolean startWhenPrepared = false;
+  private MediaPlayer nextPlayer;
+  private int nextIndex;
+  private boolean nextPlayerReady = false;
+  private boolean nextPlayerLinked = false;
+
   @Override
   public void onCreate() {
     super.onCreate();
@@ -99,6 +169,9 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
   }
 
   public boolean isPlaying() {
+    if (clipSoundId != 0) {
+      return clipEndsAtMs != 0;
+    }
     if (player != null) {
       return player.isPlaying();
     }
@@ -107,9 +180,14 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
 
   public void pause() {
     try {
-      player.pause();
+      if (clipSoundId != 0) {
+        pauseClip();
+      } else {
+        player.pause();
+      }
     } catch (Exception ignored) {
     } finally {
+      pauseRamp();
       if (isStarted) {
         wasPlaying = true;
       }
@@ -126,8 +204,14 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
       timer.cancel();
       timer = null;
     }
+    cancelRamp();
+    cancelQueue();
     try {
-      player.stop();
+      if (clipSoundId != 0) {
+        stopClip();
+      } else {
+        player.stop();
+      }
     } catch (Exception ignored) {
     } finally {
       onCompletion(wasInterrupted);
@@ -149,7 +233,20 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
           : audioManager.requestAudioFocus(this, AudioManager.STREAM_ALARM,
               AudioManager.AUDIOFOCUS_GAIN);
       if (access == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
-        player.start();
+        if (clipSoundId != 0) {
+          startClip();
+        } else if (queueIndex >= 0 && !playerPrepared) {
+          // the item before failed and this one is still preparing
+          startWhenPrepared = true;
+        } else {
+          player.start();
+          measureStartLatency();
+          if (queueIndex >= 0) {
+            sendQueueItemStarted();
+          }
+        }
+        resumeRamp();
+        applyVolume();
         isStarted = true;
         isPaused = false;
         wasPlaying = false;
@@ -186,48 +283,403 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
 
 
   public void setVolume(float volume) {
+    this.volume = volume;
+    applyVolume();
+  }
+
+  private void applyVolume() {
+    // a VolumeShaper applies the ramp level on its own
+    float level = volumeShaper != null ? 1f : getRampLevel();
     try {
-      player.setVolume(volume, volume);
+      if (clipSoundId != 0) {
+        clipPlayer.setVolume(volume * level);
+      } else {
+        player.setVolume(volume * level, volume * level);
+      }
     } catch (Exception ignored) {
     }
   }
 
+  /**
+   * Ramps the volume level from `from` (the current level if NaN) to `to` over durationMs, on top
+   * of the volume given to setVolume(). Uses a VolumeShaper on the MediaPlayer when available and
+   * steps the volume from the main thread otherwise. A perceptual ramp follows a cubic curve,
+   * which sounds more even than a linear one. Sends "volume_ramp_completed" with the reached
+   * level when done, or when cancelled by another ramp or a new source, and stops playback at the
+   * end if stopWhenDone is set.
+   */
+  public void rampVolume(float from, float to, long durationMs, boolean perceptual, boolean stopWhenDone) {
+    float current = getRampLevel();
+    cancelRamp();
+    rampFrom = Float.isNaN(from) ? current : Math.max(0, Math.min(1, from));
+    rampTo = Math.max(0, Math.min(1, to));
+    rampStartMs = SystemClock.uptimeMillis();
+    rampDurationMs = Math.max(0, durationMs);
+    rampPerceptual = perceptual;
+    rampStopWhenDone = stopWhenDone;
+    rampRunning = true;
+
+    if (clipSoundId == 0 && player != null && VERSION.SDK_INT >= VERSION_CODES.O) {
+      try {
+        applyVolumeShaper();
+        handler.postDelayed(rampDoneRunnable, rampDurationMs);
+        return;
+      } catch (Exception e) {
+        Log.d(TAG, "could not use VolumeShaper: " + e.getLocalizedMessage());
+        closeVolumeShaper();
+      }
+    }
+    rampStep();
+  }
+
+  private float getRampLevel() {
+    if (!rampRunning || rampDurationMs == 0) {
+      return rampTo;
+    }
+    return rampValue(Math.min(1f, (rampNowMs() - rampStartMs) / (float) rampDurationMs));
+  }
 
-  /** plays default notification sound if uri is null */
-  public void setDataSource(@Nullable Uri uri, boolean isLoopUri, boolean preferExternalDevice, Promise promise) {
+  /** the time on the ramp clock, which stands still while the ramp is held by pause() */
+  private long rampNowMs() {
+    return rampPausedAtMs != 0 ? rampPausedAtMs : SystemClock.uptimeMillis();
+  }
+
+  /** holds a running ramp at its level while playback is paused, until resumeRamp() */
+  private void pauseRamp() {
+    if (!rampRunning || rampPausedAtMs != 0) {
+      return;
+    }
+    rampPausedAtMs = SystemClock.uptimeMillis();
+    handler.removeCallbacks(rampStepRunnable);
+    handler.removeCallbacks(rampDoneRunnable);
+  }
+
+  private void resumeRamp() {
+    if (rampPausedAtMs == 0) {
+      return;
+    }
+    rampStartMs += SystemClock.uptimeMillis() - rampPausedAtMs;
+    rampPausedAtMs = 0;
+    // a VolumeShaper kept going on the clock while paused, the rest of the ramp goes on by steps
+    closeVolumeShaper();
+    rampStep();
+  }
+
+  private float rampValue(float t) {
+    if (rampPerceptual) {
+      t = rampTo > rampFrom ? t * t * t : 1 - (1 - t) * (1 - t) * (1 - t);
+    }
+    return rampFrom + (rampTo - rampFrom) * t;
+  }
+
+  @RequiresApi(VERSION_CODES.O)
+  private void applyVolumeShaper() {
+    float[] times = new float[RAMP_CURVE_POINTS];
+    float[] volumes = new float[RAMP_CURVE_POINTS];
+    for (int i = 0; i < RAMP_CURVE_POINTS; i++) {
+      times[i] = i / (float) (RAMP_CURVE_POINTS - 1);
+      volumes[i] = rampValue(times[i]);
+    }
+    VolumeShaper.Configuration config = new VolumeShaper.Configuration.Builder()
+        .setDuration(Math.max(1, rampDurationMs))
+        .setCurve(times, volumes)
+        .setInterpolatorType(VolumeShaper.Configuration.INTERPOLATOR_TYPE_LINEAR)
+        .build();
+    if (volumeShaper == null) {
+      volumeShaper = player.createVolumeShaper(config);
+    } else {
+      volumeShaper.replace(config, VolumeShaper.Operation.PLAY, false);
+    }
+    volumeShaper.apply(VolumeShaper.Operation.PLAY);
+    applyVolume();
+  }
+
+  private void rampStep() {
+    applyVolume();
+    if (rampNowMs() - rampStartMs >= rampDurationMs) {
+      rampDone();
+    } else {
+      handler.postDelayed(rampStepRunnable, RAMP_STEP_MS);
+    }
+  }
+
+  private void rampDone() {
+    rampRunning = false;
+    applyVolume();
+    sendRampCompleted(false);
+    if (rampStopWhenDone) {
+      // a fade-out that ends the sound is a normal end, not an interruption
+      stop(false);
+    }
+  }
+
+  /** stops a running ramp at its current level */
+  private void cancelRamp() {
+    handler.removeCallbacks(rampStepRunnable);
+    handler.removeCallbacks(rampDoneRunnable);
+    if (rampRunning) {
+      rampTo = getRampLevel();
+      rampRunning = false;
+      sendRampCompleted(true);
+    }
+    rampPausedAtMs = 0;
+  }
+
+  /**
+   * cancels a running ramp and goes back to the full level and volume, for a new source. the
+   * volume given to setVolume() only lasts for the source it was given for
+   */
+  private void resetRamp() {
+    cancelRamp();
+    closeVolumeShaper();
+    rampTo = 1f;
+    volume = 1f;
+  }
+
+  private void closeVolumeShaper() {
+    if (volumeShaper != null && VERSION.SDK_INT >= VERSION_CODES.O) {
+      try {
+        volumeShaper.close();
+      } catch (Exception ignored) {
+      }
+    }
+    volumeShaper = null;
+  }
+
+  private void sendRampCompleted(boolean cancelled) {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("level", rampTo);
+    map.putBoolean("cancelled", cancelled);
+    sendEvent("volume_ramp_completed", map);
+  }
+
+
+  /**
+   * plays default notification sound if uri is null. triggerTimeMs is when the alarm that plays the
+   * sound was due, to report the start latency from there, or 0
+   */
+  public void setDataSource(@Nullable Uri uri, boolean isLoopUri, boolean preferExternalDevice, long triggerTimeMs, Promise promise) {
     if (setDataSourcePromise != null) {
       promise.reject("ERROR", "A setDataSource Call is already pending");
       return;
     }
+    if (uri == null) {
+      // NOTIFICATION DEFAULT
+      uri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+    }
+    playRequestedAtMs = System.currentTimeMillis();
+    playTriggeredAtMs = triggerTimeMs;
+    stopClip();
+    resetRamp();
+    cancelQueue();
+    clipSoundId = 0;
+    if (!isLoopUri) {
+      Uri source = resolveDefaultUri(uri);
+      long durationMs = getDurationMs(source);
+      if (durationMs > 0 && durationMs <= ShortClipPlayer.MAX_DURATION_MS) {
+        setClipSource(source, durationMs, preferExternalDevice, promise);
+        return;
+      }
+    }
+    setPlayerSource(uri, isLoopUri, preferExternalDevice, promise);
+  }
+
+  /**
+   * Plays the sounds one after the other without gaps, the same as setDataSource() but for a list.
+   * Each next sound is prepared while the current one plays and started by MediaPlayer itself,
+   * without a round trip to JS. Sends "queue_item_started", "queue_item_completed" and
+   * "queue_item_error" with the index of the item, and "completed" after the last one. An item
+   * that fails to open or to play is skipped after its "queue_item_error". Items do
+   * not loop and always play through MediaPlayer. A null uri plays the default notification sound.
+   */
+  public void setQueue(List<Uri> uris, boolean preferExternalDevice, Promise promise) {
+    if (setDataSourcePromise != null) {
+      promise.reject("ERROR", "A setDataSource Call is already pending");
+      return;
+    }
+    if (uris.isEmpty()) {
+      promise.reject("ERROR", "queue cannot be empty");
+      return;
+    }
+    playRequestedAtMs = System.currentTimeMillis();
+    playTriggeredAtMs = 0;
+    stopClip();
+    resetRamp();
+    cancelQueue();
+    clipSoundId = 0;
+    for (Uri uri : uris) {
+      queue.add(uri != null ? uri : RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION));
+    }
+    queuePreferExternalDevice = preferExternalDevice;
+    queueIndex = 0;
+    setPlayerSource(queue.get(0), false, preferExternalDevice, promise);
+    if (setDataSourcePromise == null) {
+      // the first item could not be opened, the promise is already rejected
+      cancelQueue();
+      return;
+    }
+    prepareQueueItem(1);
+  }
+
+  private void prepareQueueItem(int index) {
+    releaseNextPlayer();
+    if (index >= queue.size()) {
+      return;
+    }
+    MediaPlayer mp = new MediaPlayer();
+    mp.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+    mp.setOnPreparedListener(p -> {
+      nextPlayerReady = true;
+      float level = volume * getRampLevel();
+      p.setVolume(level, level);
+      linkNextPlayer();
+    });
+    mp.setOnErrorListener((p, what, extra) -> {
+      Log.d(TAG, "could not prepare queue item " + index + ": " + what + ", " + extra);
+      sendQueueEvent("queue_item_error", index);
+      prepareQueueItem(index + 1);
+      return true;
+    });
+    nextPlayer = mp;
+    nextIndex = index;
+    try {
+      configurePlayer(mp, queue.get(index), false, queuePreferExternalDevice);
+      mp.prepareAsync();
+    } catch (Exception e) {
+      Log.d(TAG, "could not prepare queue item " + index + ": " + e.getLocalizedMessage());
+      sendQueueEvent("queue_item_error", index);
+      prepareQueueItem(index + 1);
+    }
+  }
+
+  /** lets the current player start the next one when it ends, once both are prepared */
+  private void linkNextPlayer() {
+    if (nextPlayer == null || !nextPlayerReady || !playerPrepared || nextPlayerLinked) {
+      return;
+    }
+    try {
+      player.setNextMediaPlayer(nextPlayer);
+      nextPlayerLinked = true;
+    } catch (Exception e) {
+      // started from onCompletion instead
+      Log.d(TAG, "could not link queue item " + nextIndex + ": " + e.getLocalizedMessage());
+    }
+  }
+
+  /** @return false if there is no next item */
+  private boolean advanceQueue() {
+    if (queueIndex < 0) {
+      return false;
+    }
+    sendQueueEvent("queue_item_completed", queueIndex);
+    return playNextQueueItem();
+  }
+
+  /**
+   * skips the current item after its player failed, the same as an item that could not be opened.
+   * @return false if there is no next item
+   */
+  private boolean skipQueueItem() {
+    sendQueueEvent("queue_item_error", queueIndex);
+    // the failed player will not start the next one
+    nextPlayerLinked = false;
+    return playNextQueueItem();
+  }
+
+  /** makes the next player the current one, and starts it if the queue is playing */
+  private boolean playNextQueueItem() {
+    if (nextPlayer == null) {
+      cancelQueue();
+      return false;
+    }
+    boolean playing = isStarted && !isPaused;
+    MediaPlayer finished = player;
+    boolean linked = nextPlayerLinked;
+    playerPrepared = nextPlayerReady;
+    player = nextPlayer;
+    queueIndex = nextIndex;
+    nextPlayer = null;
+    nextPlayerReady = false;
+    nextPlayerLinked = false;
+    player.setOnErrorListener(this);
+    player.setOnPreparedListener(this);
+    player.setOnCompletionListener(this);
+    finished.release();
+
+    if (volumeShaper != null) {
+      // the shaper belonged to the finished player, a running ramp goes on by steps
+      closeVolumeShaper();
+      if (rampRunning) {
+        handler.removeCallbacks(rampDoneRunnable);
+        rampStep();
+      }
+    }
+    applyVolume();
+    if (linked) {
+      sendQueueItemStarted();
+    } else if (!playing) {
+      // left to start(), e.g. when the first item failed while preparing
+      if (playerPrepared && setDataSourcePromise != null) {
+        setDataSourcePromise.resolve(null);
+        setDataSourcePromise = null;
+      }
+    } else if (playerPrepared) {
+      player.start();
+      sendQueueItemStarted();
+    } else {
+      startWhenPrepared = true;
+    }
+    prepareQueueItem(queueIndex + 1);
+    return true;
+  }
+
+  private void sendQueueItemStarted() {
+    if (queueStartedIndex != queueIndex) {
+      queueStartedIndex = queueIndex;
+      sendQueueEvent("queue_item_started", queueIndex);
+    }
+  }
+
+  private void sendQueueEvent(String name, int index) {
+    WritableMap map = Arguments.createMap();
+    map.putInt("index", index);
+    sendEvent(name, map);
+  }
+
+  private void releaseNextPlayer() {
+    if (nextPlayerLinked && player != null) {
+      // the current player would otherwise start a released one when it ends
+      try {
+        player.setNextMediaPlayer(null);
+      } catch (Exception ignored) {
+      }
+    }
+    if (nextPlayer != null) {
+      nextPlayer.release();
+      nextPlayer = null;
+    }
+    nextPlayerReady = false;
+    nextPlayerLinked = false;
+  }
+
+  private void cancelQueue() {
+    if (queueIndex < 0) {
+      return;
+    }
+    releaseNextPlayer();
+    queue.clear();
+    queueIndex = -1;
+    queueStartedIndex = -1;
+    playerPrepared = false;
+    startWhenPrepared = false;
+  }
+
+  private void setPlayerSource(Uri uri, boolean isLoopUri, boolean preferExternalDevice, Promise promise) {
     try {
       setDataSourcePromise = promise;
       this.isLoopUri = isLoopUri;
       player.reset();
-      player.setLooping(this.isLoopUri);
-      if (uri == null) {
-        // NOTIFICATION DEFAULT
-        uri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-      }
-      int id = getIdFromRawResourceUri(uri);
-      if (id > 0) {
-        try {
-          AssetFileDescriptor afd = getResources().openRawResourceFd(id);
-          if (afd == null) {
-            throw new Exception("file is compressed");
-          }
-          player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
-              afd.getLength());
-          afd.close();
-        } catch (Resources.NotFoundException e) {
-          throw new Exception("resource with id " + id + " not found");
-        }
-      } else {
-        player.setDataSource(ctx, uri);
-      }
-      player.setAudioAttributes(new AudioAttributes.Builder()
-              .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-              .setUsage(preferExternalDevice && isExternalDeviceConnected(getApplicationContext()) ? AudioAttributes.USAGE_MEDIA : AudioAttributes.USAGE_ALARM)
-              .build());
+      configurePlayer(player, uri, isLoopUri, preferExternalDevice);
       player.prepareAsync();
     } catch (Exception e) {
       promise.reject("ERROR", "setDataSource: " + e.getLocalizedMessage());
@@ -236,6 +688,237 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
     }
   }
 
+  private void configurePlayer(MediaPlayer mp, Uri uri, boolean loop, boolean preferExternalDevice) throws Exception {
+    mp.setLooping(loop);
+    SoundCache soundCache = SoundCache.getInstance(this);
+    Uri source = resolveDefaultUri(uri);
+    File cached = soundCache.getCachedFile(source);
+    if (cached == null) {
+      // decoded for the next time, before opening the source so that a source that can not be
+      // opened, like a resource compressed in the APK, still plays the next time
+      soundCache.cache(source);
+    }
+    int id = getIdFromRawResourceUri(uri);
+    if (cached != null) {
+      mp.setDataSource(cached.getPath());
+    } else if (id > 0) {
+      try {
+        AssetFileDescriptor afd = getResources().openRawResourceFd(id);
+        if (afd == null) {
+          throw new Exception("file is compressed");
+        }
+        mp.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
+            afd.getLength());
+        afd.close();
+      } catch (Resources.NotFoundException e) {
+        throw new Exception("resource with id " + id + " not found");
+      }
+    } else {
+      mp.setDataSource(ctx, uri);
+    }
+    mp.setAudioAttributes(new AudioAttributes.Builder()
+            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+            .setUsage(getUsage(preferExternalDevice))
+            .build());
+  }
+
+  private int getUsage(boolean preferExternalDevice) {
+    return preferExternalDevice && isExternalDeviceConnected(getApplicationContext()) ? AudioAttributes.USAGE_MEDIA : AudioAttributes.USAGE_ALARM;
+  }
+
+  private AssetFileDescriptor openFd(Uri uri) throws Exception {
+    int id = getIdFromRawResourceUri(uri);
+    AssetFileDescriptor afd = id > 0
+        ? getResources().openRawResourceFd(id)
+        : getContentResolver().openAssetFileDescriptor(uri, "r");
+    if (afd == null) {
+      throw new Exception("could not open " + uri);
+    }
+    return afd;
+  }
+
+  /**
+   * the default notification uri stays the same when the user picks another sound, so cached
+   * durations and clips are kept for the sound it points to instead
+   */
+  private Uri resolveDefaultUri(Uri uri) {
+    if (!RingtoneManager.isDefault(uri)) {
+      return uri;
+    }
+    Uri actual = RingtoneManager.getActualDefaultRingtoneUri(this, RingtoneManager.getDefaultType(uri));
+    return actual != null ? actual : uri;
+  }
+
+  /**
+   * @return the duration of the sound in ms, or -1 if it is not known or the sound is too large to
+   * be a short clip. cached per uri, in memory and in the SoundCache across processes
+   */
+  private long getDurationMs(Uri uri) {
+    synchronized (durationsMs) {
+      Long cached = durationsMs.get(uri);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    SoundCache soundCache = SoundCache.getInstance(this);
+    long durationMs = soundCache.getDurationMs(uri);
+    if (durationMs == SoundCache.UNKNOWN_DURATION) {
+      durationMs = probeDurationMs(uri);
+      soundCache.putDurationMs(uri, durationMs);
+    }
+    synchronized (durationsMs) {
+      durationsMs.put(uri, durationMs);
+    }
+    return durationMs;
+  }
+
+  private long probeDurationMs(Uri uri) {
+    long durationMs = -1;
+    MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+    try (AssetFileDescriptor afd = openFd(uri)) {
+      if (afd.getLength() > ShortClipPlayer.MAX_SOURCE_BYTES) {
+        // an adhan or another long sound, no need to parse it to know it is not a clip
+        return -1;
+      }
+      retriever.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+      String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+      if (duration != null) {
+        durationMs = Long.parseLong(duration);
+      }
+    } catch (Exception e) {
+      Log.d(TAG, "could not get duration of " + uri + ": " + e.getLocalizedMessage());
+    } finally {
+      try {
+        retriever.release();
+      } catch (Exception ignored) {
+      }
+    }
+    return durationMs;
+  }
+
+  /** loads a short sound into the clip player, falls back to MediaPlayer if that fails */
+  private void setClipSource(Uri uri, long durationMs, boolean preferExternalDevice, Promise promise) {
+    int usage = getUsage(preferExternalDevice);
+    if (clipPlayer == null || clipPlayer.getUsage() != usage) {
+      if (clipPlayer != null) {
+        clipPlayer.release();
+      }
+      clipPlayer = new ShortClipPlayer(usage);
+    }
+    setDataSourcePromise = promise;
+    this.isLoopUri = false;
+    ShortClipPlayer.LoadCallback callback = new ShortClipPlayer.LoadCallback() {
+      @Override
+      public void onLoaded(int soundId) {
+        clipSoundId = soundId;
+        clipDurationMs = durationMs;
+        onPrepared(null);
+      }
+
+      @Override
+      public void onError(String message) {
+        Log.d(TAG, "could not play " + uri + " as a clip: " + message);
+        setDataSourcePromise = null;
+        setPlayerSource(uri, false, preferExternalDevice, promise);
+      }
+    };
+    try (AssetFileDescriptor afd = openFd(uri)) {
+      clipPlayer.load(uri, afd, callback);
+    } catch (Exception e) {
+      callback.onError(e.getLocalizedMessage());
+    }
+  }
+
+  private void startClip() {
+    handler.removeCallbacks(clipCompletionRunnable);
+    long playForMs;
+    if (isPaused && clipRemainingMs > 0) {
+      clipPlayer.resume();
+      playForMs = clipRemainingMs;
+    } else {
+      if (!clipPlayer.play(clipSoundId)) {
+        throw new IllegalStateException("could not play clip");
+      }
+      playForMs = clipDurationMs;
+      if (playRequestedAtMs != 0) {
+        // SoundPool has no timestamp, the clip is already decoded so it starts with the call
+        sendStartLatency(playRequestedAtMs, playTriggeredAtMs, System.currentTimeMillis(), true);
+        playRequestedAtMs = 0;
+      }
+    }
+    clipRemainingMs = 0;
+    clipEndsAtMs = SystemClock.uptimeMillis() + playForMs;
+    handler.postDelayed(clipCompletionRunnable, playForMs);
+  }
+
+  private void pauseClip() {
+    if (clipEndsAtMs == 0) {
+      return;
+    }
+    handler.removeCallbacks(clipCompletionRunnable);
+    clipRemainingMs = Math.max(0, clipEndsAtMs - SystemClock.uptimeMillis());
+    clipEndsAtMs = 0;
+    clipPlayer.pause();
+  }
+
+  private void stopClip() {
+    handler.removeCallbacks(clipCompletionRunnable);
+    clipEndsAtMs = 0;
+    clipRemainingMs = 0;
+    if (clipPlayer != null) {
+      clipPlayer.stop();
+    }
+  }
+
+  /**
+   * Sends "start_latency" with the time from the setDataSource() call, and from the alarm trigger
+   * time when known, to the first audio frame being played, found with the player timestamp.
+   */
+  private void measureStartLatency() {
+    if (firstFramePoll != null) {
+      handler.removeCallbacks(firstFramePoll);
+    }
+    final MediaPlayer mp = player;
+    final long requestedAtMs = playRequestedAtMs;
+    final long triggeredAtMs = playTriggeredAtMs;
+    final long giveUpAtNs = System.nanoTime() + FIRST_FRAME_TIMEOUT_MS * 1_000_000L;
+    firstFramePoll = new Runnable() {
+      @Override
+      public void run() {
+        if (mp != player || requestedAtMs == 0) {
+          return;
+        }
+        MediaTimestamp timestamp = null;
+        try {
+          timestamp = mp.getTimestamp();
+        } catch (IllegalStateException ignored) {
+        }
+        if (timestamp == null || timestamp.getAnchorMediaTimeUs() <= 0) {
+          if (System.nanoTime() < giveUpAtNs) {
+            handler.postDelayed(this, FIRST_FRAME_POLL_MS);
+          }
+          return;
+        }
+        // the system time at which media time 0 was played, on the System.nanoTime() clock
+        long firstFrameNs = timestamp.getAnchorSystemNanoTime() - timestamp.getAnchorMediaTimeUs() * 1000;
+        long firstFrameMs = System.currentTimeMillis() - (System.nanoTime() - firstFrameNs) / 1_000_000L;
+        sendStartLatency(requestedAtMs, triggeredAtMs, firstFrameMs, false);
+      }
+    };
+    handler.post(firstFramePoll);
+    playRequestedAtMs = 0;
+  }
+
+  private void sendStartLatency(long requestedAtMs, long triggeredAtMs, long firstFrameMs, boolean shortClip) {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("latencyMs", firstFrameMs - requestedAtMs);
+    if (triggeredAtMs > 0) {
+      map.putDouble("triggerLatencyMs", firstFrameMs - triggeredAtMs);
+    }
+    map.putBoolean("shortClip", shortClip);
+    sendEvent("start_latency", map);
+  }
+
   private boolean isExternalDeviceConnected(Context context) {
     AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
 
@@ -280,6 +963,17 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
 
   @Override
   public boolean onError(MediaPlayer mp, int what, int extra) {
+    if (queueIndex >= 0 && mp == player) {
+      Log.d(TAG, "could not play queue item " + queueIndex + ": " + what + ", " + extra);
+      if (skipQueueItem()) {
+        return true;
+      }
+      if (setDataSourcePromise == null) {
+        // the last item failed, the queue ends as if it was played
+        onCompletion(false);
+        return true;
+      }
+    }
     isStarted = false;
     isPaused = false;
     wasPlaying = false;
@@ -302,12 +996,27 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
         error = "UNKNOWN";
         break;
     }
+    if (setDataSourcePromise != null) {
+      // failed while preparing
+      setDataSourcePromise.reject("ERROR", "setDataSource: " + error);
+      setDataSourcePromise = null;
+    }
     sendEvent("error", error);
     return true;
   }
 
   @Override
   public void onPrepared(MediaPlayer mp) {
+    if (queueIndex >= 0 && mp == player) {
+      playerPrepared = true;
+      if (startWhenPrepared) {
+        // the next item was not ready when the previous one ended
+        startWhenPrepared = false;
+        mp.start();
+        sendQueueItemStarted();
+      }
+      linkNextPlayer();
+    }
     if (setDataSourcePromise != null) {
       setDataSourcePromise.resolve(null);
       setDataSourcePromise = null;
@@ -316,6 +1025,9 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
 
   @Override
   public void onCompletion(MediaPlayer mp) {
+    if (mp == player && advanceQueue()) {
+      return;
+    }
     onCompletion(false);
   }
 
@@ -400,6 +1112,10 @@ public class MediaPlayerService extends HeadlessJsTaskService implements
   }
 
   public void releasePlayer() {
+    stopClip();
+    resetRamp();
+    cancelQueue();
+    clipSoundId = 0;
     if (player != null) {
       player.stop();
       player.release();
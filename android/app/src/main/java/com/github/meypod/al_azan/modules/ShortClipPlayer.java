@@ -0,0 +1,170 @@
+package com.github.meypod.al_azan.modules;
+
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Plays short sounds like the notification tone and reminders through a {@link SoundPool}, which
+ * keeps them decoded in memory so that playing one again does not open, parse or decode anything.
+ * <p>
+ * A SoundPool only takes clips of about 1MB of decoded audio and cannot tell when a sound ends,
+ * so {@link MediaPlayerService} only uses it for non looping sources up to
+ * {@link #MAX_DURATION_MS} and keeps track of the end of a clip from its duration.
+ * At most {@link #MAX_RESIDENT_CLIPS} clips are kept, the least recently used is unloaded first.
+ */
+class ShortClipPlayer implements SoundPool.OnLoadCompleteListener {
+  /** longer sources play through MediaPlayer. 5s of 44.1kHz 16bit stereo is below 1MB */
+  static final long MAX_DURATION_MS = 5000;
+  /**
+   * sources larger than this are not probed for their duration. 5s of uncompressed 48kHz 16bit
+   * stereo, so no clip is larger, while a compressed adhan of a few minutes is
+   */
+  static final long MAX_SOURCE_BYTES = 5 * 48_000 * 4;
+  private static final int MAX_RESIDENT_CLIPS = 4;
+
+  interface LoadCallback {
+    void onLoaded(int soundId);
+
+    void onError(String message);
+  }
+
+  private final SoundPool pool;
+  private final int usage;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /** sound ids of loaded and loading clips, in access order */
+  private final LinkedHashMap<Uri, Integer> sounds = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Integer, LoadCallback> pendingLoads = new HashMap<>();
+  private int streamId = 0;
+  // sound id of streamId, kept by evict(). play() and stop() run outside the lock of load()
+  private volatile int playingSoundId = 0;
+  private float volume = 1f;
+
+  ShortClipPlayer(int usage) {
+    this.usage = usage;
+    pool = new SoundPool.Builder()
+        .setMaxStreams(1)
+        .setAudioAttributes(new AudioAttributes.Builder()
+            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+            .setUsage(usage)
+            .build())
+        .build();
+    pool.setOnLoadCompleteListener(this);
+  }
+
+  int getUsage() {
+    return usage;
+  }
+
+  /**
+   * Loads the clip unless it is already resident. The callback is called on the main thread, right
+   * away if the clip was loaded before. afd is only used when the clip has to be loaded and is
+   * closed by the caller.
+   */
+  synchronized void load(Uri uri, AssetFileDescriptor afd, LoadCallback callback) {
+    Integer soundId = sounds.get(uri);
+    if (soundId != null) {
+      if (pendingLoads.containsKey(soundId)) {
+        // still loading, only the latest caller is interested
+        pendingLoads.put(soundId, callback);
+      } else {
+        callback.onLoaded(soundId);
+      }
+      return;
+    }
+    soundId = pool.load(afd, 1);
+    if (soundId == 0) {
+      callback.onError("could not load clip");
+      return;
+    }
+    sounds.put(uri, soundId);
+    pendingLoads.put(soundId, callback);
+    evict();
+  }
+
+  /** unloads the least recently used clips above the limit, never the one that is playing */
+  private void evict() {
+    Iterator<Map.Entry<Uri, Integer>> it = sounds.entrySet().iterator();
+    while (sounds.size() > MAX_RESIDENT_CLIPS && it.hasNext()) {
+      int soundId = it.next().getValue();
+      if (pendingLoads.containsKey(soundId) || soundId == playingSoundId) {
+        continue;
+      }
+      pool.unload(soundId);
+      it.remove();
+    }
+  }
+
+  @Override
+  public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+    // may be called on the thread that created the pool, callbacks are always on the main thread
+    handler.post(() -> {
+      LoadCallback callback;
+      synchronized (this) {
+        callback = pendingLoads.remove(sampleId);
+        if (status != 0) {
+          sounds.values().remove(sampleId);
+          pool.unload(sampleId);
+        }
+      }
+      if (callback == null) {
+        return;
+      }
+      if (status != 0) {
+        callback.onError("could not decode clip, status " + status);
+      } else {
+        callback.onLoaded(sampleId);
+      }
+    });
+  }
+
+  /** @return false if the clip could not be played */
+  boolean play(int soundId) {
+    stop();
+    streamId = pool.play(soundId, volume, volume, 1, 0, 1f);
+    playingSoundId = streamId != 0 ? soundId : 0;
+    return streamId != 0;
+  }
+
+  void pause() {
+    if (streamId != 0) {
+      pool.pause(streamId);
+    }
+  }
+
+  void resume() {
+    if (streamId != 0) {
+      pool.resume(streamId);
+    }
+  }
+
+  void stop() {
+    if (streamId != 0) {
+      pool.stop(streamId);
+      streamId = 0;
+      playingSoundId = 0;
+    }
+  }
+
+  void setVolume(float volume) {
+    this.volume = volume;
+    if (streamId != 0) {
+      pool.setVolume(streamId, volume, volume);
+    }
+  }
+
+  synchronized void release() {
+    stop();
+    pendingLoads.clear();
+    sounds.clear();
+    pool.release();
+  }
+}
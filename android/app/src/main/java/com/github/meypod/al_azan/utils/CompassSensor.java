@@ -6,56 +6,496 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.hardware.display.DisplayManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
 import android.view.Display;
-import android.view.Surface;
 import android.view.WindowManager;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // with help from https://talesofcode.com/developing-compass-android-application/
 public class CompassSensor implements SensorEventListener {
     private SensorManager sensorManager;
-    private Sensor rotationSensor;
+    // the sensor whose events produce headings: a rotation vector, or the magnetometer for FUSION
+    private Sensor headingSensor;
+    private SensorStrategy strategy = SensorStrategy.PRECISION;
+    private SensorStrategy activeStrategy;
     private ReactApplicationContext context;
+    // one shot heading, see getHeadingOnce(). only touched on the main looper
     private SensorEventListener oneTimeListener;
-    private float magneticDeclination = 0;
-    private final float[] rotationSensorReading = new float[3];
+    private SensorManager oneTimeSensorManager;
+    private Handler oneTimeHandler;
+    private Runnable oneTimeTimeout;
+    private final DeclinationGrid declinationGrid;
+    // sensor events, filtering and the azimuth calculation run on this thread instead of the
+    // main looper, only the finished headings are handed to the event emitter
+    private static final long THREAD_JOIN_TIMEOUT_MS = 500;
+    private HandlerThread sensorThread;
+    private volatile Handler sensorHandler;
+    private volatile float magneticDeclination = 0;
+    // smooths the heading itself, see setSmoothing()
+    public static final int DEFAULT_SMOOTHING_MS = 40;
+    private final HeadingFilter headingFilter = new HeadingFilter(DEFAULT_SMOOTHING_MS);
+    // readings of the FUSION strategy, gravity is low pass filtered out of the acceleration
+    private final float[] gravityReading = new float[MathUtils.AXIS_SIZE];
+    private long gravityReadingNs;
+    private final float[] magneticReading = new float[MathUtils.AXIS_SIZE];
+    private boolean hasGravityReading = false;
+    // scratch buffers of the azimuth calculation, reused for every event
+    private final float[] rotationMatrix = new float[MathUtils.ROTATION_MATRIX_SIZE];
+    private final float[] remappedRotationMatrix = new float[MathUtils.ROTATION_MATRIX_SIZE];
+    private final float[] orientation = new float[MathUtils.AXIS_SIZE];
+    private DisplayManager displayManager;
+    private int displayId = Display.DEFAULT_DISPLAY;
+    // only updated when the display rotates, instead of being looked up for every event
+    private volatile DisplayRotation displayRotation = DisplayRotation.ROTATION_0;
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int id) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int id) {
+        }
+
+        @Override
+        public void onDisplayChanged(int id) {
+            if (id == displayId) {
+                updateDisplayRotation();
+            }
+        }
+    };
+    // the sensor runs at the fastest rate of the "heading" events and of all subscribers
+    private volatile int requestedRateMs;
+    private long lastHeadingEventNs;
     private int currentReportRate;
-    private int currentReportRateMs;
-    private long lastReading;
-    private boolean accuracyReceived = false;
+    private volatile int currentReportRateMs;
+    private long lastReadingNs;
+    private volatile boolean accuracyReceived = false;
+    // registration is changed from the module thread and, for the adaptive rate, from the sensor
+    // thread, always while holding the lock of this object
+    private volatile boolean registered = false;
+
+    // batching mode: the sensor hub queues readings for up to maxReportLatencyUs and the
+    // headings are sent to JS once per frame as one "headings" event, see setBatching()
+    private static final int FRAME_MS = 16;
+    private static final int MAX_BATCH_SAMPLES = 64;
+    private volatile int maxReportLatencyUs = 0;
+    private final double[] batchSamples = new double[MAX_BATCH_SAMPLES * 2]; // timestamp, heading pairs
+    private int batchSize = 0;
+    private final Runnable flushBatchRunnable = this::flushBatch;
+
+    // dead-band: headings within deadBandDegrees of the last emitted one are not sent to JS,
+    // unless maxEmitIntervalMs passed since then. see setDeadBand()
+    private volatile float deadBandDegrees = 0;
+    private volatile int minEmitIntervalMs = 0;
+    private volatile int maxEmitIntervalMs = 0;
+    private float lastEmittedHeading = Float.NaN;
+    private long lastEmitNs;
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final CompassStats stats = new CompassStats();
+
+    // latest heading, written by the sensor thread and read synchronously from JS, so that
+    // animations can poll it every frame instead of receiving events. see getLatestHeading()
+    private final Object latestLock = new Object();
+    private float latestHeading = Float.NaN;
+    private int latestAccuracy;
+    private long latestTimestampNs;
+    private double latestWallTimeMs;
+    private volatile boolean headingEventsEnabled = true;
+    // whether JS listens to "heading" events at all, so they are not sent (or sensed) for nothing
+    private volatile boolean hasHeadingListeners = false;
+
+    // subscribers get "subscriptionHeading" events at their own rate, decimated from the sensor
+    // rate. copied on write, so that the sensor thread can go through it without allocating
+    private final AtomicInteger nextSubscriberId = new AtomicInteger(1);
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+
+    // qibla mode: the emitted value is the angle to turn towards the Qibla instead of the heading,
+    // in "qiblaAngle" and "qiblaAngles" events, and "qiblaAligned" fires when it gets within
+    // alignedDegrees, and again once it is more than ALIGNED_HYSTERESIS past that. see setQiblaMode()
+    private static final float ALIGNED_HYSTERESIS = 2f;
+    private static final long HAPTIC_MS = 30;
+    private volatile boolean qiblaMode = false;
+    private volatile float qiblaBearing = Float.NaN;
+    private volatile float alignedDegrees = 3f;
+    private volatile boolean alignedHaptics = false;
+    private boolean aligned = false;
+
+    // adaptive rate: while the accelerometer shows no motion for STATIONARY_MS, the rotation
+    // vector sensor is dropped to IDLE_RATE_US, and put back to the requested rate on motion.
+    // see setAdaptiveRate()
+    private static final int IDLE_RATE_US = 200_000; // 5Hz
+    private static final int ACCELEROMETER_RATE_US = 100_000;
+    private static final long STATIONARY_NS = 3_000_000_000L;
+    private static final float MOTION_THRESHOLD = 0.3f; // m/s^2 off the average acceleration
+    private static final float ACCELERATION_ALPHA = 0.1f;
+    private static final float WAKE_HEADING_CHANGE = 2f; // degrees, turning on a flat surface
+    private volatile boolean adaptiveRate = false;
+    private Sensor accelerometer;
+    private Sensor magnetometer;
+    private final float[] averageAcceleration = new float[MathUtils.AXIS_SIZE];
+    private boolean hasAcceleration = false;
+    private volatile boolean stationary = false;
+    private long lastMotionNs;
+    private float idleHeading = Float.NaN;
 
     public CompassSensor(ReactApplicationContext context) {
         this.context = context;
+        this.declinationGrid = DeclinationGrid.getInstance(context);
     }
 
-    private void init() {
+    private synchronized void init() {
         if (sensorManager == null) {
             sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-            rotationSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+            accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+            for (SensorStrategy candidate : strategy.fallbacks()) {
+                headingSensor = getHeadingSensor(sensorManager, candidate);
+                if (headingSensor != null) {
+                    activeStrategy = candidate;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sensor that gives the heading for the strategy, the magnetometer for FUSION, or
+     * null if the device does not have the sensors of the strategy
+     */
+    private static Sensor getHeadingSensor(SensorManager manager, SensorStrategy candidate) {
+        switch (candidate) {
+            case LOW_POWER:
+                return manager.getDefaultSensor(Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR);
+            case FUSION:
+                return manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null
+                        ? manager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD)
+                        : null;
+            default:
+                return manager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
         }
     }
 
     private void teardown() {
-        if (sensorManager != null) {
-            sensorManager.unregisterListener(this);
-            if (oneTimeListener != null) {
-                sensorManager.unregisterListener(oneTimeListener);
-                oneTimeListener = null;
+        synchronized (this) {
+            if (registered) {
+                stats.recordTeardown();
             }
-            sensorManager = null;
-            rotationSensor = null;
+            registered = false;
+            if (sensorManager != null) {
+                sensorManager.unregisterListener(this);
+                sensorManager = null;
+                headingSensor = null;
+                activeStrategy = null;
+                accelerometer = null;
+                magnetometer = null;
+            }
+        }
+        if (displayManager != null) {
+            displayManager.unregisterDisplayListener(displayListener);
+            displayManager = null;
+        }
+        // the join may time out while the sensor thread still handles a reading, so its state is
+        // reset by the thread itself, after that reading
+        stopSensorThread(this::resetSensorState);
+    }
+
+    private void resetSensorState() {
+        batchSize = 0;
+        lastEmittedHeading = Float.NaN;
+        stationary = false;
+        hasAcceleration = false;
+        hasGravityReading = false;
+        headingFilter.reset();
+        synchronized (latestLock) {
+            latestHeading = Float.NaN;
         }
+        aligned = false;
         accuracyReceived = false;
     }
 
+    private Handler startSensorThread() {
+        if (sensorThread == null) {
+            sensorThread = new HandlerThread("CompassSensor", Process.THREAD_PRIORITY_DISPLAY);
+            sensorThread.start();
+            sensorHandler = new Handler(sensorThread.getLooper());
+        }
+        return sensorHandler;
+    }
+
+    /**
+     * Stops the sensor thread once it ran finalTask. finalTask runs on the calling thread if there
+     * is no sensor thread. Never called with the lock of this object held, the sensor thread may
+     * be waiting for it.
+     */
+    private void stopSensorThread(Runnable finalTask) {
+        if (sensorThread == null) {
+            finalTask.run();
+            return;
+        }
+        sensorHandler.removeCallbacksAndMessages(null);
+        sensorHandler.post(finalTask);
+        sensorThread.quitSafely();
+        try {
+            sensorThread.join(THREAD_JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sensorThread = null;
+        sensorHandler = null;
+    }
+
+    /**
+     * Sets the rate of the "heading" events. The sensor itself may run faster for subscribers.
+     */
     public void setUpdateRate(int updateRateMs) {
-        currentReportRateMs = updateRateMs; // millisecond to microsecond
-        currentReportRate = updateRateMs * 1000; // millisecond to microsecond
+        requestedRateMs = updateRateMs;
+        updateSensorRate();
+    }
+
+    /**
+     * Adds a subscriber that gets "subscriptionHeading" events with its id at most every rateMs.
+     *
+     * @return the id of the subscriber
+     */
+    public synchronized int addSubscriber(int rateMs) {
+        Subscriber subscriber = new Subscriber(nextSubscriberId.getAndIncrement(), Math.max(1, rateMs));
+        Subscriber[] updated = Arrays.copyOf(subscribers, subscribers.length + 1);
+        updated[subscribers.length] = subscriber;
+        subscribers = updated;
+        updateSensorRate();
+        return subscriber.id;
+    }
+
+    /**
+     * @return false if there was no subscriber with the id
+     */
+    public synchronized boolean removeSubscriber(int id) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].id == id) {
+                Subscriber[] updated = new Subscriber[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, updated, 0, i);
+                System.arraycopy(subscribers, i + 1, updated, i, updated.length - i);
+                subscribers = updated;
+                updateSensorRate();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.length;
+    }
+
+    /**
+     * Sets the sensor to the fastest rate anyone asked for, re-registering it if it changed.
+     */
+    private synchronized void updateSensorRate() {
+        int rateMs = wantsHeadingEvents() || subscribers.length == 0 ? requestedRateMs : Integer.MAX_VALUE;
+        for (Subscriber subscriber : subscribers) {
+            rateMs = Math.min(rateMs, subscriber.rateMs);
+        }
+        if (rateMs == currentReportRateMs) {
+            return;
+        }
+        currentReportRateMs = rateMs;
+        currentReportRate = rateMs * 1000; // millisecond to microsecond
+        SensorManager manager = sensorManager;
+        Sensor sensor = headingSensor;
+        Handler handler = sensorHandler;
+        if (registered && !stationary && manager != null && sensor != null && handler != null) {
+            setSensorRate(manager, sensor, currentReportRate, handler);
+        }
+    }
+
+    /**
+     * Enables sensor batching when maxReportLatencyMs is more than 0. Readings are then queued
+     * in the sensor hub FIFO for up to that long, so the SoC can sleep in between, and the
+     * headings are sent to JS as arrays of (timestamp, heading) samples in a "headings" event,
+     * at most once per frame, instead of one "heading" event per reading.
+     */
+    public void setBatching(int maxReportLatencyMs) {
+        int latencyUs = Math.max(0, maxReportLatencyMs) * 1000;
+        if (latencyUs == maxReportLatencyUs) {
+            return;
+        }
+        maxReportLatencyUs = latencyUs;
+        boolean failed = false;
+        synchronized (this) {
+            if (registered) {
+                sensorManager.unregisterListener(this);
+                registered = false;
+                // send what was batched so far, queued before any event of the new registration
+                sensorHandler.post(flushBatchRunnable);
+                failed = !register();
+            }
+        }
+        if (failed) {
+            stop();
+        }
+    }
+
+    /**
+     * Suppresses headings that changed by less than deadBandDegrees since the last emitted one,
+     * so a phone lying still does not keep sending the same heading to JS. A heading is never
+     * emitted sooner than minEmitIntervalMs after the previous one, and always emitted once
+     * maxEmitIntervalMs passed, if more than 0.
+     */
+    public void setDeadBand(float deadBandDegrees, int minEmitIntervalMs, int maxEmitIntervalMs) {
+        this.deadBandDegrees = Math.max(0, deadBandDegrees);
+        this.minEmitIntervalMs = Math.max(0, minEmitIntervalMs);
+        this.maxEmitIntervalMs = Math.max(0, maxEmitIntervalMs);
+    }
+
+    /**
+     * @return number of headings not emitted because of the dead-band since the last call
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.getAndSet(0);
+    }
+
+    public CompassStats getStats() {
+        return stats;
+    }
+
+    /**
+     * When enabled, the rotation vector sensor runs at a low rate while the device is not moving,
+     * e.g. lying on a prayer mat, and goes back to the update rate as soon as it moves.
+     */
+    public void setAdaptiveRate(boolean enabled) {
+        if (enabled == adaptiveRate) {
+            return;
+        }
+        adaptiveRate = enabled;
+        boolean failed = false;
+        synchronized (this) {
+            if (registered) {
+                sensorManager.unregisterListener(this);
+                registered = false;
+                stationary = false;
+                sensorHandler.post(this::flushBatch);
+                failed = !register();
+            }
+        }
+        if (failed) {
+            stop();
+        }
+    }
+
+    /**
+     * Sets which sensors are used for the heading, restarting the sensor if it is running.
+     */
+    public void setStrategy(SensorStrategy strategy) {
+        if (strategy == this.strategy) {
+            return;
+        }
+        this.strategy = strategy;
+        if (sensorManager != null) {
+            stop();
+            start(requestedRateMs);
+        }
+    }
+
+    /**
+     * @return the strategy in use after falling back for missing sensors, null if not started or
+     * the device has no usable sensors
+     */
+    public SensorStrategy getActiveStrategy() {
+        return activeStrategy;
+    }
+
+    /**
+     * Sets the time constant of the heading smoothing in milliseconds, 0 disables it. The
+     * smoothing is based on the sensor timestamps, so it is the same for any update rate.
+     */
+    public void setSmoothing(int timeConstantMs) {
+        headingFilter.setTimeConstant(timeConstantMs);
+    }
+
+    /**
+     * Turns the "heading" and "headings" events off, for when JS reads the heading with
+     * {@link #getLatestHeading(double[])} instead.
+     */
+    public void setHeadingEventsEnabled(boolean enabled) {
+        headingEventsEnabled = enabled;
+        updateSensorRate();
+    }
+
+    /**
+     * Tells whether JS has any "heading" listeners. Without them the update rate set by
+     * {@link #start(int)} only applies when there are no subscribers either.
+     */
+    public void setHasHeadingListeners(boolean hasListeners) {
+        hasHeadingListeners = hasListeners;
+        updateSensorRate();
+    }
+
+    private boolean wantsHeadingEvents() {
+        return headingEventsEnabled && hasHeadingListeners;
+    }
+
+    /**
+     * Copies the latest heading into out as {heading, accuracy, wall clock timestamp in ms,
+     * sensor timestamp in ms}. The sensor timestamp only changes with a new reading, so it can be
+     * used to skip polls without one. Does not allocate, it is meant to be called every animation
+     * frame.
+     *
+     * @return false if there is no heading yet
+     */
+    public boolean getLatestHeading(double[] out) {
+        synchronized (latestLock) {
+            if (Float.isNaN(latestHeading)) {
+                return false;
+            }
+            out[0] = latestHeading;
+            out[1] = latestAccuracy;
+            out[2] = latestWallTimeMs;
+            out[3] = latestTimestampNs / 1e6;
+        }
+        return true;
+    }
+
+    /**
+     * Switches between emitting the heading and emitting the angle to turn towards the Qibla of
+     * the location given to {@link #updateMagneticDeclination(double, double, double)}.
+     *
+     * @param alignedDegrees the angle under which "qiblaAligned" fires
+     * @param haptics        whether to also give a short vibration when getting aligned
+     */
+    public void setQiblaMode(boolean enabled, float alignedDegrees, boolean haptics) {
+        this.alignedDegrees = Math.max(0, alignedDegrees);
+        this.alignedHaptics = haptics;
+        Handler handler = sensorHandler;
+        Runnable apply = () -> {
+            // pending samples were for the previous mode
+            flushBatch();
+            lastEmittedHeading = Float.NaN;
+            aligned = false;
+            qiblaMode = enabled;
+        };
+        if (handler != null) {
+            handler.post(apply);
+        } else {
+            apply.run();
+        }
     }
 
     public void setAccuracyReceived(boolean value){
@@ -65,36 +505,151 @@ public class CompassSensor implements SensorEventListener {
     public void start(int updateRateMs) {
         init();
         setUpdateRate(updateRateMs);
+        trackDisplayRotation();
 
-        if (rotationSensor == null) {
+        if (headingSensor == null) {
             context
                     .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
                     .emit("accuracyChanged", -3);
             return;
         }
 
-        boolean hasSensor = sensorManager.registerListener(this, rotationSensor, currentReportRate);
+        if (!register()) {
+            stop();
+        }
+    }
+
+    /**
+     * @return false if the sensor could not be registered. Callers then stop() after releasing the
+     * lock, as the teardown joins the sensor thread, which may be waiting for the lock in
+     * {@link #setStationary(boolean)}.
+     */
+    private synchronized boolean register() {
+        Handler handler = startSensorThread();
+        SensorManager manager = sensorManager;
+        boolean hasSensor = registerSensor(manager, headingSensor, currentReportRate, handler);
+        if (hasSensor && activeStrategy == SensorStrategy.FUSION) {
+            // gravity is needed at the heading rate, it also feeds the motion detection
+            hasSensor = registerSensor(manager, accelerometer, currentReportRate, handler);
+        } else if (hasSensor && adaptiveRate && accelerometer != null) {
+            manager.registerListener(this, accelerometer, ACCELEROMETER_RATE_US, handler);
+        }
+        lastMotionNs = SystemClock.elapsedRealtimeNanos();
+        registered = hasSensor;
+        if (hasSensor) {
+            stats.recordRegistration();
+        }
 
         if (!hasSensor) {
             context
                     .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
                     .emit("accuracyChanged", -2);
-            stop();
         }
+        return hasSensor;
+    }
+
+    /**
+     * Takes the manager and handler as arguments, so that a teardown on another thread cannot
+     * null them halfway. Callers hold the lock of this object.
+     */
+    private boolean registerSensor(SensorManager manager, Sensor sensor, int samplingPeriodUs, Handler handler) {
+        if (maxReportLatencyUs > 0) {
+            return manager.registerListener(this, sensor, samplingPeriodUs, maxReportLatencyUs, handler);
+        }
+        return manager.registerListener(this, sensor, samplingPeriodUs, handler);
     }
 
     public void stop() {
         teardown();
     }
 
+    private void onAcceleration(SensorEvent event) {
+        float deviation = 0;
+        for (int i = 0; i < MathUtils.AXIS_SIZE; i++) {
+            if (!hasAcceleration) {
+                averageAcceleration[i] = event.values[i];
+            }
+            float diff = event.values[i] - averageAcceleration[i];
+            deviation += diff * diff;
+            averageAcceleration[i] += ACCELERATION_ALPHA * diff;
+        }
+        hasAcceleration = true;
+
+        if (deviation > MOTION_THRESHOLD * MOTION_THRESHOLD) {
+            onMotion(event.timestamp);
+        } else if (!stationary && event.timestamp - lastMotionNs >= STATIONARY_NS) {
+            setStationary(true);
+        }
+    }
+
+    private void onMotion(long timestampNs) {
+        lastMotionNs = timestampNs;
+        if (stationary) {
+            setStationary(false);
+        }
+    }
+
+    /**
+     * Called on the sensor thread. Synchronized with {@link #updateSensorRate()} and
+     * {@link #teardown()}, so it never registers after a teardown or races a rate change.
+     */
+    private synchronized void setStationary(boolean value) {
+        SensorManager manager = sensorManager;
+        Sensor sensor = headingSensor;
+        Handler handler = sensorHandler;
+        if (manager == null || sensor == null || handler == null || !registered) {
+            return;
+        }
+        stationary = value;
+        idleHeading = Float.NaN;
+        setSensorRate(manager, sensor, value ? Math.max(IDLE_RATE_US, currentReportRate) : currentReportRate, handler);
+    }
+
+    /**
+     * Re-registers the heading sensor at the given rate, and for FUSION the accelerometer as well,
+     * which register() puts at the heading rate. At the idle rate it still notices motion.
+     * Callers hold the lock of this object.
+     */
+    private void setSensorRate(SensorManager manager, Sensor sensor, int samplingPeriodUs, Handler handler) {
+        manager.unregisterListener(this, sensor);
+        registerSensor(manager, sensor, samplingPeriodUs, handler);
+        Sensor gravitySensor = accelerometer;
+        if (activeStrategy == SensorStrategy.FUSION && gravitySensor != null) {
+            manager.unregisterListener(this, gravitySensor);
+            registerSensor(manager, gravitySensor, samplingPeriodUs, handler);
+        }
+    }
+
     @Override
     public void onSensorChanged(SensorEvent event) {
-        long tempMs = System.currentTimeMillis();
-        if (tempMs - lastReading >= currentReportRateMs) {
-            lastReading = tempMs;
-            if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
-                updateCompass(event);
+        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+            if (activeStrategy == SensorStrategy.FUSION) {
+                if (hasGravityReading) {
+                    MathUtils.filterGravity(event.values, gravityReading,
+                            (event.timestamp - gravityReadingNs) / 1e9f);
+                } else {
+                    System.arraycopy(event.values, 0, gravityReading, 0, MathUtils.AXIS_SIZE);
+                }
+                gravityReadingNs = event.timestamp;
+                hasGravityReading = true;
             }
+            if (adaptiveRate) {
+                onAcceleration(event);
+            }
+            return;
+        }
+        if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
+            System.arraycopy(event.values, 0, magneticReading, 0, MathUtils.AXIS_SIZE);
+        }
+        stats.recordReceived();
+        // throttle on the time of the reading, batched readings are delivered in bursts
+        if (event.timestamp - lastReadingNs < currentReportRateMs * 1_000_000L) {
+            stats.recordThrottled();
+        } else {
+            lastReadingNs = event.timestamp;
+            long updateStartNs = SystemClock.elapsedRealtimeNanos();
+            updateCompass(event);
+            stats.recordUpdate(SystemClock.elapsedRealtimeNanos() - updateStartNs);
             if (!accuracyReceived) {
                 accuracyReceived = true;
                 context
@@ -105,31 +660,174 @@ public class CompassSensor implements SensorEventListener {
     }
 
     private void updateCompass(SensorEvent event) {
-        //make sensor readings smoother using a low pass filter
-        MathUtils.lowPassFilter(event.values, rotationSensorReading);
-        DisplayRotation displayRotation = getDisplayRotation();
-        float normalizedAzimuth = MathUtils.calculateAzimuth(rotationSensorReading, displayRotation);
+        float normalizedAzimuth;
+        if (activeStrategy == SensorStrategy.FUSION) {
+            if (!hasGravityReading) {
+                return;
+            }
+            normalizedAzimuth = MathUtils.calculateAzimuth(gravityReading, magneticReading, displayRotation,
+                    rotationMatrix, remappedRotationMatrix, orientation);
+        } else {
+            normalizedAzimuth = MathUtils.calculateAzimuth(event.values, displayRotation,
+                    rotationMatrix, remappedRotationMatrix, orientation);
+        }
+
+        if (stationary && !Float.isNaN(normalizedAzimuth)) {
+            // turning the device flat on a table barely shows on the accelerometer
+            if (Float.isNaN(idleHeading)) {
+                idleHeading = normalizedAzimuth;
+            } else if (MathUtils.angleDifference(normalizedAzimuth, idleHeading) >= WAKE_HEADING_CHANGE) {
+                onMotion(event.timestamp);
+            }
+        }
 
         if (!Float.isNaN(normalizedAzimuth)) {
+            // smoothed on the angle, so there is no jitter when the heading crosses north
+            normalizedAzimuth = headingFilter.filter(normalizedAzimuth, event.timestamp);
+            float heading = normalizedAzimuth;
             if (this.magneticDeclination != 0) {
                 float trueHeading = normalizedAzimuth + magneticDeclination;
                 if (trueHeading > 360) { //if trueHeading was 362 degrees for example, it should be adjusted to be 2 degrees instead
                     trueHeading = trueHeading - 360;
                 }
-                context
-                        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                        .emit("heading", trueHeading);
-            } else {
-                context
-                        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                        .emit("heading", normalizedAzimuth);
+                heading = trueHeading;
+            }
+            // converted once per reading, so that it is the same on every poll
+            double wallTimeMs = System.currentTimeMillis()
+                    - (SystemClock.elapsedRealtimeNanos() - event.timestamp) / 1e6;
+            synchronized (latestLock) {
+                latestHeading = heading;
+                latestAccuracy = event.accuracy;
+                latestTimestampNs = event.timestamp;
+                latestWallTimeMs = wallTimeMs;
+            }
+            emitToSubscribers(event.timestamp, heading);
+            // the sensor may run faster than the update rate for a subscriber
+            if (event.timestamp - lastHeadingEventNs < requestedRateMs * 1_000_000L) {
+                return;
+            }
+            lastHeadingEventNs = event.timestamp;
+            if (qiblaMode) {
+                if (!Float.isNaN(qiblaBearing)) {
+                    float angle = MathUtils.relativeAngle(heading, qiblaBearing);
+                    updateAligned(Math.abs(angle));
+                    if (wantsHeadingEvents()) {
+                        emitHeading(event.timestamp, angle);
+                    }
+                }
+            } else if (wantsHeadingEvents()) {
+                emitHeading(event.timestamp, heading);
             }
         }
     }
 
+    private void emitToSubscribers(long timestampNs, float heading) {
+        for (Subscriber subscriber : subscribers) {
+            if (timestampNs - subscriber.lastEmitNs < subscriber.rateMs * 1_000_000L) {
+                continue;
+            }
+            subscriber.lastEmitNs = timestampNs;
+            stats.recordEmitted(timestampNs, SystemClock.elapsedRealtimeNanos());
+            WritableMap map = Arguments.createMap();
+            map.putInt("id", subscriber.id);
+            map.putDouble("heading", heading);
+            context
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit("subscriptionHeading", map);
+        }
+    }
+
+    private void updateAligned(float absoluteAngle) {
+        boolean nowAligned = aligned
+                ? absoluteAngle <= alignedDegrees + ALIGNED_HYSTERESIS
+                : absoluteAngle <= alignedDegrees;
+        if (nowAligned == aligned) {
+            return;
+        }
+        aligned = nowAligned;
+        if (nowAligned && alignedHaptics) {
+            vibrate();
+        }
+        context
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("qiblaAligned", nowAligned);
+    }
+
+    private void vibrate() {
+        Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        if (vibrator == null || !vibrator.hasVibrator()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            vibrator.vibrate(VibrationEffect.createPredefined(VibrationEffect.EFFECT_CLICK));
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            vibrator.vibrate(VibrationEffect.createOneShot(HAPTIC_MS, VibrationEffect.DEFAULT_AMPLITUDE));
+        } else {
+            //deprecated in API 26
+            vibrator.vibrate(HAPTIC_MS);
+        }
+    }
+
+    private void emitHeading(long timestampNs, float heading) {
+        if (!Float.isNaN(lastEmittedHeading)) {
+            long sinceLastMs = (timestampNs - lastEmitNs) / 1_000_000L;
+            boolean heartbeat = maxEmitIntervalMs > 0 && sinceLastMs >= maxEmitIntervalMs;
+            if (sinceLastMs < minEmitIntervalMs
+                    || (!heartbeat && MathUtils.angleDifference(heading, lastEmittedHeading) < deadBandDegrees)) {
+                suppressedCount.incrementAndGet();
+                stats.recordSuppressed();
+                return;
+            }
+        }
+        lastEmittedHeading = heading;
+        lastEmitNs = timestampNs;
+
+        if (maxReportLatencyUs <= 0) {
+            stats.recordEmitted(timestampNs, SystemClock.elapsedRealtimeNanos());
+            context
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(qiblaMode ? "qiblaAngle" : "heading", heading);
+            return;
+        }
+        if (batchSize == MAX_BATCH_SAMPLES) {
+            flushBatch();
+        }
+        batchSamples[batchSize * 2] = timestampNs;
+        batchSamples[batchSize * 2 + 1] = heading;
+        batchSize++;
+        // nulled by a teardown that gave up waiting for this thread
+        Handler handler = sensorHandler;
+        if (batchSize == 1 && handler != null) {
+            handler.postDelayed(flushBatchRunnable, FRAME_MS);
+        }
+    }
+
+    private void flushBatch() {
+        Handler handler = sensorHandler;
+        if (handler != null) {
+            handler.removeCallbacks(flushBatchRunnable);
+        }
+        if (batchSize == 0) {
+            return;
+        }
+        // sensor timestamps are in the elapsed realtime clock, JS gets wall clock milliseconds
+        long nowNs = SystemClock.elapsedRealtimeNanos();
+        double clockOffsetMs = System.currentTimeMillis() - nowNs / 1e6;
+        WritableArray samples = Arguments.createArray();
+        for (int i = 0; i < batchSize; i++) {
+            stats.recordEmitted((long) batchSamples[i * 2], nowNs);
+            samples.pushDouble(clockOffsetMs + batchSamples[i * 2] / 1e6);
+            samples.pushDouble(batchSamples[i * 2 + 1]);
+        }
+        batchSize = 0;
+        context
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(qiblaMode ? "qiblaAngles" : "headings", samples);
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        if (sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+        if (sensor == headingSensor) {
             context
                     .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
                     .emit("accuracyChanged", accuracy);
@@ -137,30 +835,34 @@ public class CompassSensor implements SensorEventListener {
     }
 
     public void updateMagneticDeclination(double latitude, double longitude, double altitude) {
-        this.magneticDeclination = MathUtils.calculateMagneticDeclination(latitude, longitude, altitude);
+        float declination = declinationGrid.lookup(latitude, longitude);
+        if (Float.isNaN(declination)) {
+            // grid is not ready yet, or we are too close to a magnetic pole for it. the full model
+            // is needed there, a truncated one is the least accurate near the poles
+            declination = MathUtils.calculateMagneticDeclination(latitude, longitude, altitude);
+        }
+        this.magneticDeclination = declination;
+        this.qiblaBearing = MathUtils.calculateQiblaBearing(latitude, longitude);
     }
 
-    private DisplayRotation getDisplayRotation() {
+    private void trackDisplayRotation() {
+        if (displayManager == null) {
+            displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+            displayManager.registerDisplayListener(displayListener, new Handler(Looper.getMainLooper()));
+        }
+        updateDisplayRotation();
+    }
+
+    private void updateDisplayRotation() {
         final Display display = getDisplayCompat();
-        final int rotation;
         if (display != null) {
-            rotation = display.getRotation();
+            displayId = display.getDisplayId();
+            displayRotation = DisplayRotation.fromSurfaceRotation(display.getRotation());
         } else {
-            rotation = 0;
-        }
-        switch (rotation) {
-            case Surface.ROTATION_90:
-                return DisplayRotation.ROTATION_90;
-            case Surface.ROTATION_180:
-                return DisplayRotation.ROTATION_180;
-            case Surface.ROTATION_270:
-                return DisplayRotation.ROTATION_270;
-            default:
-                return DisplayRotation.ROTATION_0;
+            displayRotation = DisplayRotation.ROTATION_0;
         }
     }
 
-
     private Display getDisplayCompat() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             Activity activity = context.getCurrentActivity();
@@ -173,4 +875,194 @@ public class CompassSensor implements SensorEventListener {
         }
     }
 
+    public interface HeadingCallback {
+        void onHeading(float heading, int accuracy, int samples);
+
+        void onError(String code, String message);
+    }
+
+    /**
+     * Registers a sensor just long enough to average a few headings, for screens that need the
+     * orientation once and should not keep the sensor running. Readings with a low accuracy are
+     * skipped while better ones may still come, the headings are averaged as angles (circular
+     * mean), and the sensor is unregistered as soon as there are enough of them or the time is
+     * up. Uses the sensors of the strategy set with {@link #setStrategy(SensorStrategy)}, with the
+     * same fallbacks, but is otherwise independent of {@link #start(int)}, and runs on the main
+     * looper.
+     *
+     * @param samples   number of readings to average
+     * @param timeoutMs after this, the readings so far are used, or the callback gets an error
+     *                  if there are none
+     */
+    public void getHeadingOnce(int samples, int timeoutMs, HeadingCallback callback) {
+        new Handler(Looper.getMainLooper()).post(() -> startHeadingOnce(Math.max(1, samples), timeoutMs, callback));
+    }
+
+    private void startHeadingOnce(int samples, int timeoutMs, HeadingCallback callback) {
+        if (oneTimeListener != null) {
+            callback.onError("E_BUSY", "a one shot heading is already in progress");
+            return;
+        }
+        SensorManager manager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        // same sensors as the continuous compass would use
+        Sensor sensor = null;
+        SensorStrategy sensorStrategy = null;
+        for (SensorStrategy candidate : strategy.fallbacks()) {
+            sensor = getHeadingSensor(manager, candidate);
+            if (sensor != null) {
+                sensorStrategy = candidate;
+                break;
+            }
+        }
+        if (sensor == null) {
+            callback.onError("E_NO_SENSOR", "no sensor for the heading");
+            return;
+        }
+        updateDisplayRotation();
+
+        boolean fusion = sensorStrategy == SensorStrategy.FUSION;
+        OneShotListener listener = new OneShotListener(samples, timeoutMs, fusion, callback);
+        oneTimeListener = listener;
+        oneTimeSensorManager = manager;
+        oneTimeHandler = new Handler(Looper.getMainLooper());
+        oneTimeTimeout = listener::finish;
+        boolean listening = manager.registerListener(listener, sensor, SensorManager.SENSOR_DELAY_GAME, oneTimeHandler);
+        if (listening && fusion) {
+            listening = manager.registerListener(listener, manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),
+                    SensorManager.SENSOR_DELAY_GAME, oneTimeHandler);
+        }
+        if (!listening) {
+            stopHeadingOnce();
+            callback.onError("E_SENSOR", "could not register the sensor");
+            return;
+        }
+        oneTimeHandler.postDelayed(oneTimeTimeout, Math.max(0, timeoutMs));
+    }
+
+    private class OneShotListener implements SensorEventListener {
+        private final int samples;
+        private final int timeoutMs;
+        private final boolean fusion;
+        private final HeadingCallback callback;
+        // latest accelerometer and magnetometer readings, for the FUSION strategy
+        private final float[] gravity = new float[MathUtils.AXIS_SIZE];
+        private final float[] magnetic = new float[MathUtils.AXIS_SIZE];
+        private boolean hasGravity;
+        private long gravityNs;
+        private final float[] matrix = new float[MathUtils.ROTATION_MATRIX_SIZE];
+        private final float[] remappedMatrix = new float[MathUtils.ROTATION_MATRIX_SIZE];
+        private final float[] orientationAngles = new float[MathUtils.AXIS_SIZE];
+        // sums of the readings with a settled accuracy, and of all readings
+        private double settledSin, settledCos, anySin, anyCos;
+        private int settledCount, anyCount, lastAccuracy;
+        private int worstAccuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+
+        OneShotListener(int samples, int timeoutMs, boolean fusion, HeadingCallback callback) {
+            this.samples = samples;
+            this.timeoutMs = timeoutMs;
+            this.fusion = fusion;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            float heading;
+            if (!fusion) {
+                heading = MathUtils.calculateAzimuth(event.values, displayRotation,
+                        matrix, remappedMatrix, orientationAngles);
+            } else if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+                if (hasGravity) {
+                    MathUtils.filterGravity(event.values, gravity, (event.timestamp - gravityNs) / 1e9f);
+                } else {
+                    System.arraycopy(event.values, 0, gravity, 0, MathUtils.AXIS_SIZE);
+                }
+                gravityNs = event.timestamp;
+                hasGravity = true;
+                return;
+            } else if (!hasGravity) {
+                return;
+            } else {
+                // a heading per magnetometer reading, with its accuracy
+                System.arraycopy(event.values, 0, magnetic, 0, MathUtils.AXIS_SIZE);
+                heading = MathUtils.calculateAzimuth(gravity, magnetic, displayRotation,
+                        matrix, remappedMatrix, orientationAngles);
+            }
+            if (Float.isNaN(heading)) {
+                return;
+            }
+            double radians = Math.toRadians(heading + magneticDeclination);
+            anySin += Math.sin(radians);
+            anyCos += Math.cos(radians);
+            anyCount++;
+            lastAccuracy = event.accuracy;
+            if (event.accuracy >= SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM) {
+                settledSin += Math.sin(radians);
+                settledCos += Math.cos(radians);
+                settledCount++;
+                worstAccuracy = Math.min(worstAccuracy, event.accuracy);
+                if (settledCount >= samples) {
+                    finish();
+                }
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+
+        void finish() {
+            if (oneTimeListener != this) {
+                return;
+            }
+            stopHeadingOnce();
+            if (settledCount > 0) {
+                callback.onHeading(circularMean(settledSin, settledCos), worstAccuracy, settledCount);
+            } else if (anyCount > 0) {
+                // accuracy never settled, better than nothing
+                callback.onHeading(circularMean(anySin, anyCos), lastAccuracy, anyCount);
+            } else {
+                callback.onError("E_TIMEOUT", "no heading within " + timeoutMs + "ms");
+            }
+        }
+    }
+
+    /**
+     * Ends a pending {@link #getHeadingOnce} now, with the readings it has so far.
+     */
+    public void cancelHeadingOnce() {
+        new Handler(Looper.getMainLooper()).post(() -> {
+            if (oneTimeListener instanceof OneShotListener) {
+                ((OneShotListener) oneTimeListener).finish();
+            }
+        });
+    }
+
+    private static float circularMean(double sinSum, double cosSum) {
+        float degrees = (float) Math.toDegrees(Math.atan2(sinSum, cosSum));
+        return (degrees + 360f) % 360f;
+    }
+
+    private void stopHeadingOnce() {
+        if (oneTimeListener == null) {
+            return;
+        }
+        oneTimeSensorManager.unregisterListener(oneTimeListener);
+        oneTimeHandler.removeCallbacks(oneTimeTimeout);
+        oneTimeListener = null;
+        oneTimeSensorManager = null;
+        oneTimeHandler = null;
+        oneTimeTimeout = null;
+    }
+
+    private static class Subscriber {
+        final int id;
+        final int rateMs;
+        long lastEmitNs; // only used on the sensor thread
+
+        Subscriber(int id, int rateMs) {
+            this.id = id;
+            this.rateMs = rateMs;
+        }
+    }
+
 }
\ No newline at end of file
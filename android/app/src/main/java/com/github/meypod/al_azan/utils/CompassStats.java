@@ -0,0 +1,170 @@
+package com.github.meypod.al_azan.utils;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the {@link CompassSensor} pipeline, to check on a device whether the requested
+ * rates are honored and where the time goes. Updated from the sensor thread and read from the
+ * module thread, so everything is atomic. Recording costs a few atomic increments per event.
+ */
+public class CompassStats {
+    /**
+     * upper bounds in ms of the latency histogram buckets, from the sensor event timestamp to the
+     * heading being handed to the event emitter. the last bucket has everything above.
+     */
+    public static final int[] LATENCY_BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 250};
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong emitted = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+    private final AtomicLong latencyTotalNs = new AtomicLong();
+    private final AtomicLong latencyMaxNs = new AtomicLong();
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong updateTotalNs = new AtomicLong();
+    private final AtomicLong updateMaxNs = new AtomicLong();
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicLong teardowns = new AtomicLong();
+    private volatile long sinceNs = SystemClock.elapsedRealtimeNanos();
+
+    void recordReceived() {
+        received.incrementAndGet();
+    }
+
+    void recordThrottled() {
+        throttled.incrementAndGet();
+    }
+
+    void recordSuppressed() {
+        suppressed.incrementAndGet();
+    }
+
+    /**
+     * @param sensorTimestampNs the {@code SensorEvent.timestamp} the emitted heading came from
+     */
+    void recordEmitted(long sensorTimestampNs, long nowNs) {
+        emitted.incrementAndGet();
+        long latencyNs = Math.max(0, nowNs - sensorTimestampNs);
+        latencyTotalNs.addAndGet(latencyNs);
+        updateMax(latencyMaxNs, latencyNs);
+        long latencyMs = latencyNs / 1_000_000L;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MS.length && latencyMs >= LATENCY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        latencyHistogram.incrementAndGet(bucket);
+    }
+
+    void recordUpdate(long durationNs) {
+        updateCount.incrementAndGet();
+        updateTotalNs.addAndGet(durationNs);
+        updateMax(updateMaxNs, durationNs);
+    }
+
+    void recordRegistration() {
+        registrations.incrementAndGet();
+    }
+
+    void recordTeardown() {
+        teardowns.incrementAndGet();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    public long getEmitted() {
+        return emitted.get();
+    }
+
+    /**
+     * @return count of emitted headings per bucket of {@link #LATENCY_BUCKETS_MS}, plus one for
+     * the latencies above the last bucket
+     */
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[latencyHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = latencyHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    public double getAverageLatencyMs() {
+        long count = emitted.get();
+        return count == 0 ? 0 : latencyTotalNs.get() / 1e6 / count;
+    }
+
+    public double getMaxLatencyMs() {
+        return latencyMaxNs.get() / 1e6;
+    }
+
+    /**
+     * @return emitted headings per second since the last reset
+     */
+    public double getEmittedRate() {
+        double seconds = (SystemClock.elapsedRealtimeNanos() - sinceNs) / 1e9;
+        return seconds <= 0 ? 0 : emitted.get() / seconds;
+    }
+
+    /**
+     * @return received heading sensor events per second since the last reset
+     */
+    public double getReceivedRate() {
+        double seconds = (SystemClock.elapsedRealtimeNanos() - sinceNs) / 1e9;
+        return seconds <= 0 ? 0 : received.get() / seconds;
+    }
+
+    public double getAverageUpdateMs() {
+        long count = updateCount.get();
+        return count == 0 ? 0 : updateTotalNs.get() / 1e6 / count;
+    }
+
+    public double getMaxUpdateMs() {
+        return updateMaxNs.get() / 1e6;
+    }
+
+    public long getRegistrations() {
+        return registrations.get();
+    }
+
+    public long getTeardowns() {
+        return teardowns.get();
+    }
+
+    public void reset() {
+        received.set(0);
+        throttled.set(0);
+        suppressed.set(0);
+        emitted.set(0);
+        for (int i = 0; i < latencyHistogram.length(); i++) {
+            latencyHistogram.set(i, 0);
+        }
+        latencyTotalNs.set(0);
+        latencyMaxNs.set(0);
+        updateCount.set(0);
+        updateTotalNs.set(0);
+        updateMaxNs.set(0);
+        registrations.set(0);
+        teardowns.set(0);
+        sinceNs = SystemClock.elapsedRealtimeNanos();
+    }
+}
@@ -0,0 +1,254 @@
+package com.github.meypod.al_azan.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A 1° x 1° grid of magnetic declination generated from {@link TSAGeoMag}, so that a declination
+ * can be looked up with a few array reads instead of a full evaluation of the model.
+ * <p>
+ * For every grid point the declination at the start of the current year and its change over the
+ * year are stored, and lookups interpolate bilinearly in space and linearly in time. The grid is
+ * persisted as a packed float file in the app storage, memory mapped when loaded, and regenerated
+ * in the background when the model epoch or the year changes.
+ * <p>
+ * Compared to the full model at sea level, the interpolated value is off by at most 0.02° below
+ * 60° of latitude, and by up to about 0.19° further north and south (the worst seen for 2024 was
+ * near 83°N), still below the 0.5° accuracy of the model itself. Near the magnetic poles the
+ * declination changes too fast for a 1° grid, so cells whose corners differ by more than
+ * {@link #MAX_CELL_SPREAD} degrees are not interpolated and {@link #lookup(double, double)}
+ * returns NaN for them. That is the case for about 16% of points picked uniformly on the globe,
+ * all of them at high latitudes, so callers must expect it. Altitude is ignored, its effect on the
+ * declination is a few hundredths of a degree for any altitude on the ground.
+ */
+public class DeclinationGrid {
+    private static final String TAG = "DeclinationGrid";
+    private static final String FILE_NAME = "declination_grid.bin";
+    private static final int MAGIC = 0x44474944; // DGID
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24; // magic, version, year, unused, epoch
+
+    private static final int ROWS = 181; // latitudes -90 to 90
+    private static final int COLUMNS = 361; // longitudes -180 to 180
+    private static final int SIZE = ROWS * COLUMNS;
+
+    /** cells with a larger declination difference between their corners are not interpolated */
+    static final float MAX_CELL_SPREAD = 2f;
+
+    // after a failed load the next one waits, doubling up to the max, instead of running again on
+    // the next heading
+    private static final long MIN_RETRY_DELAY_MS = 60_000;
+    private static final long MAX_RETRY_DELAY_MS = 24 * 60 * 60_000;
+
+    private static DeclinationGrid instance;
+
+    // generating evaluates the model twice for every grid point, so it does not hold up the shared
+    // Async thread that other modules use for their short tasks
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final File file;
+    private boolean loading = false;
+    private long retryDelayMs = 0;
+    private long retryAtMs = 0;
+
+    /** declination at the start of the year followed by the change over the year, SIZE floats each */
+    private volatile FloatBuffer values;
+    private volatile long yearStartMs;
+    private volatile long yearEndMs;
+
+    private DeclinationGrid(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * @return the shared grid, loading or generating it in the background if needed.
+     */
+    public static synchronized DeclinationGrid getInstance(Context context) {
+        if (instance == null) {
+            instance = new DeclinationGrid(context.getApplicationContext());
+        }
+        instance.ensureLoaded();
+        return instance;
+    }
+
+    /**
+     * Returns the interpolated declination in degrees for the current date.
+     *
+     * @return the declination, or NaN if the grid is not ready yet or the point is too close to a
+     * magnetic pole. Callers should fall back to the full model in that case.
+     */
+    public float lookup(double latitude, double longitude) {
+        FloatBuffer grid = values;
+        long now = System.currentTimeMillis();
+        if (grid == null || now < yearStartMs || now >= yearEndMs) {
+            ensureLoaded();
+            return Float.NaN;
+        }
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return Float.NaN;
+        }
+        float yearFraction = (float) (now - yearStartMs) / (yearEndMs - yearStartMs);
+
+        double row = Math.max(0, Math.min(ROWS - 1, latitude + 90));
+        double column = ((longitude + 180) % 360 + 360) % 360;
+        int r0 = Math.min((int) row, ROWS - 2);
+        int c0 = Math.min((int) column, COLUMNS - 2);
+        float tr = (float) (row - r0);
+        float tc = (float) (column - c0);
+
+        int i00 = r0 * COLUMNS + c0;
+        int i10 = i00 + COLUMNS;
+        float d00 = valueAt(grid, i00, yearFraction);
+        float d01 = unwrap(d00, valueAt(grid, i00 + 1, yearFraction));
+        float d10 = unwrap(d00, valueAt(grid, i10, yearFraction));
+        float d11 = unwrap(d00, valueAt(grid, i10 + 1, yearFraction));
+
+        float min = Math.min(Math.min(d00, d01), Math.min(d10, d11));
+        float max = Math.max(Math.max(d00, d01), Math.max(d10, d11));
+        if (max - min > MAX_CELL_SPREAD) {
+            return Float.NaN;
+        }
+
+        float declination = (d00 * (1 - tc) + d01 * tc) * (1 - tr) + (d10 * (1 - tc) + d11 * tc) * tr;
+        return unwrap(0, declination);
+    }
+
+    private static float valueAt(FloatBuffer grid, int index, float yearFraction) {
+        return grid.get(index) + yearFraction * grid.get(SIZE + index);
+    }
+
+    /**
+     * @return the given angle, shifted by whole turns to be within 180 degrees of reference
+     */
+    private static float unwrap(float reference, float angle) {
+        while (angle - reference > 180) angle -= 360;
+        while (angle - reference <= -180) angle += 360;
+        return angle;
+    }
+
+    private synchronized void ensureLoaded() {
+        long now = System.currentTimeMillis();
+        if (loading || now < retryAtMs || (values != null && now >= yearStartMs && now < yearEndMs)) {
+            return;
+        }
+        loading = true;
+        executor.execute(() -> {
+            LoadResult result = null;
+            try {
+                result = load();
+            } catch (Exception e) {
+                Log.e(TAG, "could not load declination grid", e);
+            }
+            synchronized (DeclinationGrid.this) {
+                if (result != null) {
+                    yearStartMs = result.yearStartMs;
+                    yearEndMs = result.yearEndMs;
+                    values = result.values;
+                    retryDelayMs = 0;
+                } else {
+                    retryDelayMs = Math.min(MAX_RETRY_DELAY_MS, Math.max(MIN_RETRY_DELAY_MS, retryDelayMs * 2));
+                    retryAtMs = System.currentTimeMillis() + retryDelayMs;
+                }
+                loading = false;
+            }
+        });
+    }
+
+    private LoadResult load() throws IOException {
+        GregorianCalendar calendar = new GregorianCalendar();
+        int year = calendar.get(Calendar.YEAR);
+        double epoch = GeoMagModel.getDefault().getEpoch();
+
+        if (!isValid(year, epoch)) {
+            generate(year, epoch);
+        }
+
+        LoadResult result = new LoadResult();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            result.values = channel
+                    .map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) SIZE * 2 * Float.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+        calendar.clear();
+        calendar.set(year, Calendar.JANUARY, 1);
+        result.yearStartMs = calendar.getTimeInMillis();
+        calendar.set(year + 1, Calendar.JANUARY, 1);
+        result.yearEndMs = calendar.getTimeInMillis();
+        return result;
+    }
+
+    private boolean isValid(int year, double epoch) {
+        if (file.length() != HEADER_SIZE + (long) SIZE * 2 * Float.BYTES) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            raf.getChannel().read(header, 0);
+            return header.getInt(0) == MAGIC
+                    && header.getInt(4) == FORMAT_VERSION
+                    && header.getInt(8) == year
+                    && header.getDouble(16) == epoch;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void generate(int year, double epoch) throws IOException {
+        long start = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer
+                .allocate(HEADER_SIZE + SIZE * 2 * Float.BYTES)
+                .order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(year).putInt(0).putDouble(epoch);
+        FloatBuffer grid = buffer.asFloatBuffer();
+
+        // one latitude row at a time, so that the batch evaluation can reuse the Legendre recursion
+        TSAGeoMag geoMag = TSAGeoMag.forCurrentThread();
+        double[] latitudes = new double[COLUMNS];
+        double[] longitudes = new double[COLUMNS];
+        double[] startOfYear = new double[COLUMNS];
+        double[] endOfYear = new double[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) {
+            longitudes[c] = c - 180;
+        }
+        for (int r = 0; r < ROWS; r++) {
+            Arrays.fill(latitudes, r - 90);
+            geoMag.getDeclinations(latitudes, longitudes, null, year, startOfYear);
+            geoMag.getDeclinations(latitudes, longitudes, null, year + 1, endOfYear);
+            for (int c = 0; c < COLUMNS; c++) {
+                int index = r * COLUMNS + c;
+                grid.put(index, (float) startOfYear[c]);
+                grid.put(SIZE + index, unwrap(0, (float) (endOfYear[c] - startOfYear[c])));
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array());
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("could not replace " + file);
+        }
+        Log.d(TAG, "generated declination grid for " + year + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static class LoadResult {
+        FloatBuffer values;
+        long yearStartMs;
+        long yearEndMs;
+    }
+}
@@ -1,8 +1,33 @@
 package com.github.meypod.al_azan.utils;
 
+import android.hardware.SensorManager;
+import android.view.Surface;
+
 public enum DisplayRotation {
-    ROTATION_0,
-    ROTATION_90,
-    ROTATION_180,
-    ROTATION_270
+    ROTATION_0(SensorManager.AXIS_X, SensorManager.AXIS_Y),
+    ROTATION_90(SensorManager.AXIS_Y, SensorManager.AXIS_MINUS_X),
+    ROTATION_180(SensorManager.AXIS_MINUS_X, SensorManager.AXIS_MINUS_Y),
+    ROTATION_270(SensorManager.AXIS_MINUS_Y, SensorManager.AXIS_X);
+
+    /** axes to pass to {@link SensorManager#remapCoordinateSystem} for this rotation */
+    public final int remapX;
+    public final int remapY;
+
+    DisplayRotation(int remapX, int remapY) {
+        this.remapX = remapX;
+        this.remapY = remapY;
+    }
+
+    public static DisplayRotation fromSurfaceRotation(int rotation) {
+        switch (rotation) {
+            case Surface.ROTATION_90:
+                return ROTATION_90;
+            case Surface.ROTATION_180:
+                return ROTATION_180;
+            case Surface.ROTATION_270:
+                return ROTATION_270;
+            default:
+                return ROTATION_0;
+        }
+    }
 }
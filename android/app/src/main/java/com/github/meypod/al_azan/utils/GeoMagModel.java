@@ -0,0 +1,183 @@
+package com.github.meypod.al_azan.utils;
+
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+
+/**
+ * The immutable part of the geomagnetic model used by {@link TSAGeoMag}: the Schmidt normalized
+ * Gauss coefficients and the recursion constants. They only depend on the model data, so they are
+ * computed once per process and the same instance can be shared by any number of threads.
+ * <p>
+ * All per evaluation state lives in {@link TSAGeoMag}, which is cheap to keep one of per thread
+ * (see {@link TSAGeoMag#forCurrentThread()}).
+ */
+public final class GeoMagModel {
+    private static final String TAG = "GeoMagModel";
+
+    /**
+     * The maximum number of degrees of the spherical harmonic model.
+     */
+    static final int MAX_DEGREE = 12;
+
+    private static final GeoMagModel DEFAULT = new GeoMagModel();
+
+    /**
+     * The date in years, for the start of the valid time of the fit coefficients
+     */
+    final double epoch;
+
+    /**
+     * The Gauss coefficients of main geomagnetic model (nt).
+     * <p>
+     * This and the other coefficient arrays are flattened 13 x 13 arrays: the g coefficient of
+     * degree n and order m is at n + m * 13, the matching h coefficient at m - 1 + n * 13.
+     */
+    final double[] c = new double[169];
+
+    /**
+     * The Gauss coefficients of secular geomagnetic model (nt/yr).
+     */
+    final double[] cd = new double[169];
+
+    /**
+     * Recursion constants of the associated Legendre polynomials.
+     */
+    final double[] k = new double[169];
+    final double[] fn = new double[13];
+    final double[] fm = new double[13];
+
+    /**
+     * @return the model built from WMM.COF if it is on the class path, otherwise from the
+     * internal {@link WMMCoefficients}.
+     */
+    public static GeoMagModel getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Reads data from file and initializes magnetic model.  If
+     * the file is not present, or an IO exception occurs, then the internal
+     * values from {@link WMMCoefficients} will be used. Note that the last line of the
+     * WMM.COF file must be 9999... for this method to read in the input
+     * file properly.
+     */
+    private GeoMagModel() {
+        double fileEpoch;
+        try {
+            fileEpoch = readFile();
+        } catch (FileNotFoundException e) {
+            // this is the normal case, WMM.COF is not shipped with the app
+            fileEpoch = setCoeff();
+        } catch (IOException e) {
+            Log.d(TAG, "Problem reading WMM.COF, the magnetic field components are set to internal values: "
+                    + e.getMessage());
+            fileEpoch = setCoeff();
+        }
+        epoch = fileEpoch;
+
+        // CONVERT SCHMIDT NORMALIZED GAUSS COEFFICIENTS TO UNNORMALIZED
+        double[] snorm = new double[169];
+        snorm[0] = 1.0;
+        for (int n = 1; n <= MAX_DEGREE; n++) {
+
+            snorm[n] = snorm[n - 1] * (2 * n - 1) / n;
+            int j = 2;
+
+            for (int m = 0; m <= n; m++) {
+                k[n + m * 13] = (double) (((n - 1) * (n - 1)) - (m * m)) / (double) ((2 * n - 1) * (2 * n - 3));
+                if (m > 0) {
+                    double flnmj = ((n - m + 1) * j) / (double) (n + m);
+                    snorm[n + m * 13] = snorm[n + (m - 1) * 13] * Math.sqrt(flnmj);
+                    j = 1;
+                    c[m - 1 + n * 13] = snorm[n + m * 13] * c[m - 1 + n * 13];
+                    cd[m - 1 + n * 13] = snorm[n + m * 13] * cd[m - 1 + n * 13];
+                }
+                c[n + m * 13] = snorm[n + m * 13] * c[n + m * 13];
+                cd[n + m * 13] = snorm[n + m * 13] * cd[n + m * 13];
+            }
+
+            fn[n] = (n + 1);
+            fm[n] = n;
+        }
+
+        k[1 + 13] = 0.0;
+    }
+
+    public double getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Reads the coefficients from a WMM.COF file on the class path.
+     *
+     * @return The epoch of the coefficients in the file.
+     */
+    private double readFile() throws IOException {
+        InputStream input = GeoMagModel.class.getResourceAsStream("WMM.COF");
+        if (input == null) throw new FileNotFoundException("WMM.COF not found");
+        Reader is = new InputStreamReader(input);
+        StreamTokenizer str = new StreamTokenizer(is);
+
+        // READ WORLD MAGNETIC MODEL SPHERICAL HARMONIC COEFFICIENTS
+        str.nextToken();
+        double fileEpoch = str.nval;
+        Log.d(TAG, "Epoch is: " + fileEpoch);
+        str.nextToken(); // model name
+        str.nextToken(); // release date
+
+        while (true) {
+            str.nextToken();
+            if (str.nval >= 9999) // end of file
+                break;
+
+            int n = (int) str.nval;
+            str.nextToken();
+            int m = (int) str.nval;
+            str.nextToken();
+            double gnm = str.nval;
+            str.nextToken();
+            double hnm = str.nval;
+            str.nextToken();
+            double dgnm = str.nval;
+            str.nextToken();
+            double dhnm = str.nval;
+
+            put(n, m, gnm, hnm, dgnm, dhnm);
+        }
+
+        is.close();
+        return fileEpoch;
+    }
+
+    /**
+     * Sets the coefficients from the internal table in {@link WMMCoefficients}.
+     *
+     * @return The epoch of the internal coefficients.
+     */
+    private double setCoeff() {
+        double[] table = WMMCoefficients.TABLE;
+        for (int i = 0; i < table.length; i += WMMCoefficients.COLUMNS) {
+            put((int) table[i], (int) table[i + 1],
+                    table[i + 2], table[i + 3], table[i + 4], table[i + 5]);
+        }
+        return WMMCoefficients.EPOCH;
+    }
+
+    private void put(int n, int m, double gnm, double hnm, double dgnm, double dhnm) {
+        if (m <= n) {
+            c[n + m * 13] = gnm;
+            cd[n + m * 13] = dgnm;
+
+            if (m != 0) {
+                c[m - 1 + n * 13] = hnm;
+                cd[m - 1 + n * 13] = dhnm;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.meypod.al_azan.utils;
+
+/**
+ * All magnetic field components of one {@link TSAGeoMag} evaluation, together with their secular
+ * variation (yearly rate of change). Intended to be allocated once and reused for many
+ * evaluations, see {@link TSAGeoMag#calculate(double, double, double, double, GeoMagResult)}.
+ */
+public class GeoMagResult {
+    /** North component (X) of the field, in nano Tesla. */
+    public double northIntensity;
+    /** East component (Y) of the field, in nano Tesla. */
+    public double eastIntensity;
+    /** Vertical component (Z) of the field, positive downward, in nano Tesla. */
+    public double verticalIntensity;
+    /** Horizontal intensity (H) of the field, in nano Tesla. */
+    public double horizontalIntensity;
+    /** Total intensity (F) of the field, in nano Tesla. */
+    public double totalIntensity;
+    /** Declination in degrees, east is positive. Magnetic heading + declination = true heading. */
+    public double declination;
+    /** Inclination (dip angle) in degrees, down is positive. */
+    public double inclination;
+
+    /** Yearly change of {@link #northIntensity}, in nano Tesla per year. */
+    public double northIntensityRate;
+    /** Yearly change of {@link #eastIntensity}, in nano Tesla per year. */
+    public double eastIntensityRate;
+    /** Yearly change of {@link #verticalIntensity}, in nano Tesla per year. */
+    public double verticalIntensityRate;
+    /** Yearly change of {@link #horizontalIntensity}, in nano Tesla per year. */
+    public double horizontalIntensityRate;
+    /** Yearly change of {@link #totalIntensity}, in nano Tesla per year. */
+    public double totalIntensityRate;
+    /** Yearly change of {@link #declination}, in degrees per year. */
+    public double declinationRate;
+    /** Yearly change of {@link #inclination}, in degrees per year. */
+    public double inclinationRate;
+}
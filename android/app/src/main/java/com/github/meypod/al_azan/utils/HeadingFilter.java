@@ -0,0 +1,53 @@
+package com.github.meypod.al_azan.utils;
+
+/**
+ * Smooths a stream of headings in degrees. The headings are averaged as unit vectors, so there is
+ * no jump when they cross north (e.g. 359 and 1 average to 0, not 180), and the smoothing factor
+ * of every step comes from the time between the readings, so the smoothing strength is the same
+ * for any event rate.
+ */
+public class HeadingFilter {
+    private volatile float timeConstantMs;
+    private double sin;
+    private double cos;
+    private long lastTimestampNs;
+    private boolean hasValue = false;
+
+    /**
+     * @param timeConstantMs time for the filter to cover 63% of a step change, 0 disables it
+     */
+    public HeadingFilter(float timeConstantMs) {
+        setTimeConstant(timeConstantMs);
+    }
+
+    public void setTimeConstant(float timeConstantMs) {
+        this.timeConstantMs = Math.max(0, timeConstantMs);
+    }
+
+    /**
+     * @param heading     the new heading, in degrees
+     * @param timestampNs time of the reading on a monotonic clock, e.g. {@code SensorEvent.timestamp}
+     * @return the smoothed heading, from 0 to 360
+     */
+    public float filter(float heading, long timestampNs) {
+        double radians = Math.toRadians(heading);
+        if (!hasValue || timeConstantMs <= 0) {
+            sin = Math.sin(radians);
+            cos = Math.cos(radians);
+            lastTimestampNs = timestampNs;
+            hasValue = true;
+            return heading;
+        }
+        double elapsedMs = Math.max(0, timestampNs - lastTimestampNs) / 1e6;
+        lastTimestampNs = timestampNs;
+        double alpha = 1 - Math.exp(-elapsedMs / timeConstantMs);
+        sin += alpha * (Math.sin(radians) - sin);
+        cos += alpha * (Math.cos(radians) - cos);
+        float degrees = (float) Math.toDegrees(Math.atan2(sin, cos));
+        return (degrees + 360f) % 360f;
+    }
+
+    public void reset() {
+        hasValue = false;
+    }
+}
@@ -3,52 +3,65 @@ package com.github.meypod.al_azan.utils;
 import android.hardware.SensorManager;
 
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // converted from https://github.com/Kr0oked/Compass
 // with modification
 public class MathUtils {
 
     private static final int AZIMUTH = 0;
-    private static final int AXIS_SIZE = 3;
-    private static final int ROTATION_MATRIX_SIZE = 9;
+    public static final int AXIS_SIZE = 3;
+    public static final int ROTATION_MATRIX_SIZE = 9;
 
     public static float calculateAzimuth(float[] rotationVector, DisplayRotation displayRotation) {
-        float[] rotationMatrix = getRotationMatrix(rotationVector);
-        float[] remappedRotationMatrix = remapRotationMatrix(rotationMatrix, displayRotation);
-        float[] orientationInRadians = new float[AXIS_SIZE];
+        return calculateAzimuth(rotationVector, displayRotation,
+                new float[ROTATION_MATRIX_SIZE], new float[ROTATION_MATRIX_SIZE], new float[AXIS_SIZE]);
+    }
+
+    /**
+     * Same as {@link #calculateAzimuth(float[], DisplayRotation)}, but writes the intermediate
+     * results into the given arrays instead of allocating new ones, so it can run for every
+     * sensor event without creating garbage.
+     *
+     * @param rotationMatrix         receives the rotation matrix, {@link #ROTATION_MATRIX_SIZE} elements
+     * @param remappedRotationMatrix receives the remapped rotation matrix, {@link #ROTATION_MATRIX_SIZE} elements
+     * @param orientationInRadians   receives the orientation, {@link #AXIS_SIZE} elements
+     */
+    public static float calculateAzimuth(float[] rotationVector, DisplayRotation displayRotation,
+                                         float[] rotationMatrix, float[] remappedRotationMatrix,
+                                         float[] orientationInRadians) {
+        SensorManager.getRotationMatrixFromVector(rotationMatrix, rotationVector);
+        remapRotationMatrix(rotationMatrix, displayRotation, remappedRotationMatrix);
         SensorManager.getOrientation(remappedRotationMatrix, orientationInRadians);
         float azimuthInRadians = orientationInRadians[AZIMUTH];
         float azimuthInDegrees = (float) Math.toDegrees(azimuthInRadians);
         return (azimuthInDegrees + 360f) % 360f;
     }
 
-    private static float[] getRotationMatrix(float[] rotationVector) {
-        float[] rotationMatrix = new float[ROTATION_MATRIX_SIZE];
-        SensorManager.getRotationMatrixFromVector(rotationMatrix, rotationVector);
-        return rotationMatrix;
-    }
-
-    private static float[] remapRotationMatrix(float[] rotationMatrix, DisplayRotation displayRotation) {
-        switch (displayRotation) {
-            case ROTATION_0:
-                return remapRotationMatrix(rotationMatrix, SensorManager.AXIS_X, SensorManager.AXIS_Y);
-            case ROTATION_90:
-                return remapRotationMatrix(rotationMatrix, SensorManager.AXIS_Y, SensorManager.AXIS_MINUS_X);
-            case ROTATION_180:
-                return remapRotationMatrix(rotationMatrix, SensorManager.AXIS_MINUS_X, SensorManager.AXIS_MINUS_Y);
-            case ROTATION_270:
-                return remapRotationMatrix(rotationMatrix, SensorManager.AXIS_MINUS_Y, SensorManager.AXIS_X);
+    /**
+     * Same as {@link #calculateAzimuth(float[], DisplayRotation, float[], float[], float[])}, for
+     * devices without a rotation vector sensor: the rotation matrix is computed from the gravity
+     * (accelerometer) and geomagnetic (magnetometer) readings instead.
+     *
+     * @return the azimuth, or NaN if the readings can not give one, e.g. in free fall
+     */
+    public static float calculateAzimuth(float[] gravity, float[] geomagnetic, DisplayRotation displayRotation,
+                                         float[] rotationMatrix, float[] remappedRotationMatrix,
+                                         float[] orientationInRadians) {
+        if (!SensorManager.getRotationMatrix(rotationMatrix, null, gravity, geomagnetic)) {
+            return Float.NaN;
         }
-        return null;
+        remapRotationMatrix(rotationMatrix, displayRotation, remappedRotationMatrix);
+        SensorManager.getOrientation(remappedRotationMatrix, orientationInRadians);
+        float azimuthInDegrees = (float) Math.toDegrees(orientationInRadians[AZIMUTH]);
+        return (azimuthInDegrees + 360f) % 360f;
     }
 
-    private static float[] remapRotationMatrix(float[] rotationMatrix, int newX, int newY) {
-        float[] remappedRotationMatrix = new float[ROTATION_MATRIX_SIZE];
-        SensorManager.remapCoordinateSystem(rotationMatrix, newX, newY, remappedRotationMatrix);
-        return remappedRotationMatrix;
+    private static void remapRotationMatrix(float[] rotationMatrix, DisplayRotation displayRotation, float[] remappedRotationMatrix) {
+        SensorManager.remapCoordinateSystem(rotationMatrix, displayRotation.remapX, displayRotation.remapY, remappedRotationMatrix);
     }
 
-
     //0 ≤ ALPHA ≤ 1
     //smaller ALPHA results in smoother sensor data but slower updates
     public static final float ALPHA = 0.96f;
@@ -62,10 +75,181 @@ public class MathUtils {
         return output;
     }
 
+    // time constant of the gravity taken from the accelerometer, long enough to average out the
+    // shaking of a hand, short enough to follow the phone being tilted
+    public static final float GRAVITY_TIME_CONSTANT_S = 0.2f;
+
+    /**
+     * Low-pass filters an accelerometer reading into gravity, with a weight that depends on the
+     * time since the previous reading, so that the filter is the same for any sensor rate.
+     */
+    public static void filterGravity(float[] acceleration, float[] gravity, float elapsedSeconds) {
+        float alpha = elapsedSeconds / (GRAVITY_TIME_CONSTANT_S + elapsedSeconds);
+        for (int i = 0; i < AXIS_SIZE; i++) {
+            gravity[i] += alpha * (acceleration[i] - gravity[i]);
+        }
+    }
+
+    /**
+     * @return the smallest difference between two angles in degrees, from 0 to 180.
+     * e.g. 359 and 1 are 2 degrees apart.
+     */
+    public static float angleDifference(float a, float b) {
+        float diff = Math.abs(a - b) % 360;
+        return diff > 180 ? 360 - diff : diff;
+    }
+
+    // same coordinates as the Qibla of the adhan library used on the JS side
+    private static final double KAABA_LATITUDE = 21.4225241;
+    private static final double KAABA_LONGITUDE = 39.8261818;
+
+    /**
+     * @return the initial great circle bearing from the given location to the Kaaba, in degrees
+     * clockwise from true north, from 0 to 360
+     */
+    public static float calculateQiblaBearing(double latitude, double longitude) {
+        double phi = Math.toRadians(latitude);
+        double kaabaPhi = Math.toRadians(KAABA_LATITUDE);
+        double deltaLambda = Math.toRadians(KAABA_LONGITUDE - longitude);
+        double y = Math.sin(deltaLambda);
+        double x = Math.cos(phi) * Math.tan(kaabaPhi) - Math.sin(phi) * Math.cos(deltaLambda);
+        float bearing = (float) Math.toDegrees(Math.atan2(y, x));
+        return (bearing + 360f) % 360f;
+    }
+
+    /**
+     * @return the angle from a heading to a bearing in degrees, from -180 to 180, positive is clockwise
+     */
+    public static float relativeAngle(float heading, float bearing) {
+        float angle = (bearing - heading) % 360;
+        if (angle > 180) angle -= 360;
+        if (angle <= -180) angle += 360;
+        return angle;
+    }
+
+    private static final int DECLINATION_CACHE_SIZE = 32;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+    // declination changes less than 0.01 degree for these steps
+    private static final double LAT_LON_QUANTUM = 0.01; // degrees, about 1km
+    private static final double ALTITUDE_QUANTUM = 0.1; // km
+
+    private static final LinkedHashMap<DeclinationKey, Float> declinationCache =
+            new LinkedHashMap<DeclinationKey, Float>(DECLINATION_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<DeclinationKey, Float> eldest) {
+                    return size() > DECLINATION_CACHE_SIZE;
+                }
+            };
+    private static long declinationCacheHits = 0;
+    private static long declinationCacheMisses = 0;
+
+    /**
+     * Returns the magnetic declination for the current day. Results are kept in a small LRU cache
+     * keyed by the position (rounded to about 1km and 100m altitude) and the day, so repeated
+     * calls for the same place only cost a map lookup.
+     */
     public static float calculateMagneticDeclination(double latitude, double longitude, double altitude) {
-        TSAGeoMag geoMag = new TSAGeoMag();
-        return (float) geoMag
+        return calculateMagneticDeclination(latitude, longitude, altitude, GeoMagModel.MAX_DEGREE);
+    }
+
+    /**
+     * Same as {@link #calculateMagneticDeclination(double, double, double)}, using the model
+     * truncated to the given degree, see {@link TSAGeoMag#getMaxDeclinationError(int, double)}.
+     */
+    public static float calculateMagneticDeclination(double latitude, double longitude, double altitude, int maxDegree) {
+        DeclinationKey key = new DeclinationKey(
+                (int) Math.round(latitude / LAT_LON_QUANTUM),
+                (int) Math.round(longitude / LAT_LON_QUANTUM),
+                (int) Math.round(altitude / ALTITUDE_QUANTUM),
+                System.currentTimeMillis() / DAY_MS,
+                maxDegree);
+        synchronized (declinationCache) {
+            Float cached = declinationCache.get(key);
+            if (cached != null) {
+                declinationCacheHits++;
+                return cached;
+            }
+            declinationCacheMisses++;
+        }
+
+        TSAGeoMag geoMag = TSAGeoMag.forCurrentThread(maxDegree);
+        float declination = (float) geoMag
                 .getDeclination(latitude, longitude, geoMag.decimalYear(new GregorianCalendar()), altitude);
+
+        synchronized (declinationCache) {
+            declinationCache.put(key, declination);
+        }
+        return declination;
+    }
+
+    /**
+     * @return hits, misses and current size of the declination cache, in that order
+     */
+    public static long[] getDeclinationCacheStats() {
+        synchronized (declinationCache) {
+            return new long[]{declinationCacheHits, declinationCacheMisses, declinationCache.size()};
+        }
+    }
+
+    public static void resetDeclinationCache() {
+        synchronized (declinationCache) {
+            declinationCache.clear();
+            declinationCacheHits = 0;
+            declinationCacheMisses = 0;
+        }
+    }
+
+    private static final class DeclinationKey {
+        private final int latitude;
+        private final int longitude;
+        private final int altitude;
+        private final long day;
+        private final int maxDegree;
+
+        DeclinationKey(int latitude, int longitude, int altitude, long day, int maxDegree) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.altitude = altitude;
+            this.day = day;
+            this.maxDegree = maxDegree;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DeclinationKey)) return false;
+            DeclinationKey other = (DeclinationKey) o;
+            return latitude == other.latitude
+                    && longitude == other.longitude
+                    && altitude == other.altitude
+                    && day == other.day
+                    && maxDegree == other.maxDegree;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = latitude;
+            result = 31 * result + longitude;
+            result = 31 * result + altitude;
+            result = 31 * result + (int) (day ^ (day >>> 32));
+            result = 31 * result + maxDegree;
+            return result;
+        }
+    }
+
+    public static void calculateMagneticDeclinations(double[] latitudes, double[] longitudes, double[] altitudes, float[] declinations) {
+        TSAGeoMag geoMag = TSAGeoMag.forCurrentThread();
+        double[] result = new double[latitudes.length];
+        geoMag.getDeclinations(latitudes, longitudes, altitudes, geoMag.decimalYear(new GregorianCalendar()), result);
+        for (int i = 0; i < result.length; i++) {
+            declinations[i] = (float) result[i];
+        }
+    }
+
+    public static GeoMagResult calculateMagneticField(double latitude, double longitude, double altitude, GeoMagResult result) {
+        TSAGeoMag geoMag = TSAGeoMag.forCurrentThread();
+        return geoMag
+                .calculate(latitude, longitude, geoMag.decimalYear(new GregorianCalendar()), altitude, result);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package com.github.meypod.al_azan.utils;
+
+/**
+ * Which sensors {@link CompassSensor} uses for the heading. If the sensors of the chosen strategy
+ * are missing, the next one in {@link #fallbacks()} that the device has is used.
+ */
+public enum SensorStrategy {
+    /** rotation vector, fused with the gyroscope. most responsive, uses the most power */
+    PRECISION("precision"),
+    /** geomagnetic rotation vector, no gyroscope. less power, but slower to settle */
+    LOW_POWER("lowPower"),
+    /** heading computed here from the raw accelerometer and magnetometer readings */
+    FUSION("fusion");
+
+    /** name of the strategy on the JS side */
+    public final String jsName;
+
+    SensorStrategy(String jsName) {
+        this.jsName = jsName;
+    }
+
+    /**
+     * @return this strategy followed by the ones to try when its sensors are missing
+     */
+    public SensorStrategy[] fallbacks() {
+        switch (this) {
+            case LOW_POWER:
+                return new SensorStrategy[]{LOW_POWER, PRECISION, FUSION};
+            case FUSION:
+                return new SensorStrategy[]{FUSION};
+            default:
+                return new SensorStrategy[]{PRECISION, LOW_POWER, FUSION};
+        }
+    }
+
+    public static SensorStrategy fromJsName(String name) {
+        for (SensorStrategy strategy : values()) {
+            if (strategy.jsName.equals(name)) {
+                return strategy;
+            }
+        }
+        return PRECISION;
+    }
+}
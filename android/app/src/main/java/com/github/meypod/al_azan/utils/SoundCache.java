@@ -0,0 +1,506 @@
+package com.github.meypod.al_azan.utils;
+
+import static com.github.meypod.al_azan.utils.Utils.getIdFromRawResourceUri;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A cache of sounds decoded once to 16 bit PCM WAV files in the app storage, so that playing them
+ * at alarm time needs no decoding and does not depend on how the sound is stored. Raw resources
+ * that are compressed in the APK, which cannot be opened as a file descriptor, are decoded from
+ * their stream.
+ * <p>
+ * Entries are named by the SHA-256 of the source content and an index maps each source uri to
+ * its entry, together with a validity key that is cheap to check at play time, see
+ * {@link #validityKey(Uri)}. An entry whose key no longer matches is not played.
+ * {@link #cache(Uri)} hashes the source again and decodes it only if the content changed.
+ * Decoded sounds are large, about 10MB per minute, so the least recently used entries are removed
+ * above {@link #MAX_SIZE_BYTES}.
+ */
+public class SoundCache {
+    private static final String TAG = "SoundCache";
+    private static final String DIR_NAME = "sound_cache";
+    private static final String INDEX_NAME = "index.properties";
+    private static final String DURATIONS_NAME = "durations.properties";
+    /** returned by {@link #getDurationMs(Uri)} for sounds that were not probed yet */
+    public static final long UNKNOWN_DURATION = Long.MIN_VALUE;
+    private static final String EXTENSION = ".wav";
+    private static final long MAX_SIZE_BYTES = 200L * 1024 * 1024;
+    private static final long CODEC_TIMEOUT_US = 10_000;
+    private static final int WAV_HEADER_SIZE = 44;
+
+    private static SoundCache instance;
+
+    /** decoding takes seconds, so it does not go through the shared {@link Async} thread */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Context context;
+    private final File dir;
+    private final File indexFile;
+    /** source uri to "<content hash> <validity key>" */
+    private final Properties index = new Properties();
+    private final File durationsFile;
+    /** source uri to "<duration in ms> <validity key>", probed by the player for its choice of engine */
+    private final Properties durations = new Properties();
+    private final Set<Uri> pending = new HashSet<>();
+
+    private SoundCache(Context context) {
+        this.context = context;
+        dir = new File(context.getNoBackupFilesDir(), DIR_NAME);
+        indexFile = new File(dir, INDEX_NAME);
+        durationsFile = new File(dir, DURATIONS_NAME);
+        load(index, indexFile);
+        load(durations, durationsFile);
+    }
+
+    private static void load(Properties properties, File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException ignored) {
+            // first run
+        }
+    }
+
+    public static synchronized SoundCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new SoundCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @return the decoded sound, or null if it is not cached (yet) or the source may have changed
+     * since it was decoded.
+     */
+    @Nullable
+    public synchronized File getCachedFile(Uri uri) {
+        String entry = index.getProperty(uri.toString());
+        if (entry == null) {
+            return null;
+        }
+        String hash = hashOf(entry);
+        File file = new File(dir, hash + EXTENSION);
+        if (!file.exists()) {
+            index.remove(uri.toString());
+            return null;
+        }
+        if (!entry.equals(hash + " " + validityKey(uri))) {
+            // the next cache() call hashes the source again and updates the entry
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * @return the duration stored with {@link #putDurationMs(Uri, long)}, or
+     * {@link #UNKNOWN_DURATION} if there is none or the source may have changed since.
+     */
+    public synchronized long getDurationMs(Uri uri) {
+        String entry = durations.getProperty(uri.toString());
+        if (entry == null) {
+            return UNKNOWN_DURATION;
+        }
+        int space = entry.indexOf(' ');
+        if (space < 0 || !entry.substring(space + 1).equals(validityKey(uri))) {
+            return UNKNOWN_DURATION;
+        }
+        try {
+            return Long.parseLong(entry.substring(0, space));
+        } catch (NumberFormatException e) {
+            return UNKNOWN_DURATION;
+        }
+    }
+
+    /** keeps a duration across processes, so that it is probed once per source */
+    public synchronized void putDurationMs(Uri uri, long durationMs) {
+        durations.setProperty(uri.toString(), durationMs + " " + validityKey(uri));
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+        save(durations, durationsFile);
+    }
+
+    /**
+     * Decodes the sound in the background, unless the cached entry already has the same content.
+     * Sounds that are not local, like the ones served by metro during development, are ignored.
+     */
+    public synchronized void cache(Uri uri) {
+        String scheme = uri.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme) || !pending.add(uri)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                update(uri);
+            } catch (Exception e) {
+                Log.e(TAG, "could not cache " + uri, e);
+            } finally {
+                synchronized (SoundCache.this) {
+                    pending.remove(uri);
+                }
+            }
+        });
+    }
+
+    private void update(Uri uri) throws Exception {
+        // taken before reading, so that a change while hashing invalidates the entry
+        String key = validityKey(uri);
+        String hash;
+        try (InputStream in = openStream(uri)) {
+            hash = sha256(in);
+        }
+        String previousHash;
+        synchronized (this) {
+            String previousEntry = index.getProperty(uri.toString());
+            previousHash = previousEntry != null ? hashOf(previousEntry) : null;
+        }
+        File file = new File(dir, hash + EXTENSION);
+        if (hash.equals(previousHash) && file.exists()) {
+            // same content, e.g. after an app update, only the key changed
+            synchronized (this) {
+                index.setProperty(uri.toString(), hash + " " + key);
+                saveIndex();
+            }
+            return;
+        }
+
+        if (!file.exists()) {
+            long start = System.currentTimeMillis();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("could not create " + dir);
+            }
+            File temp = new File(dir, hash + ".tmp");
+            File copy = null;
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                AssetFileDescriptor afd = openFd(uri);
+                if (afd != null) {
+                    try {
+                        extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+                    } finally {
+                        afd.close();
+                    }
+                } else {
+                    // compressed in the APK, the extractor needs something seekable
+                    copy = new File(dir, hash + ".src");
+                    try (InputStream in = openStream(uri); OutputStream out = new FileOutputStream(copy)) {
+                        byte[] buffer = new byte[64 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    }
+                    extractor.setDataSource(copy.getPath());
+                }
+                decodeToWav(extractor, temp);
+            } catch (Exception e) {
+                // trim() only looks at decoded files, a partial one would stay forever
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                throw e;
+            } finally {
+                extractor.release();
+                if (copy != null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    copy.delete();
+                }
+            }
+            if (!temp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                throw new IOException("could not replace " + file);
+            }
+            Log.d(TAG, "decoded " + uri + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        synchronized (this) {
+            index.setProperty(uri.toString(), hash + " " + key);
+            if (previousHash != null && !previousHash.equals(hash) && !hasEntry(previousHash)) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(dir, previousHash + EXTENSION).delete();
+            }
+            trim(file);
+            saveIndex();
+        }
+    }
+
+    /** removes the least recently used entries above the size limit, except keep */
+    private void trim(File keep) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (size <= MAX_SIZE_BYTES) {
+                break;
+            }
+            if (f.equals(keep)) {
+                continue;
+            }
+            size -= f.length();
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+            String hash = f.getName().substring(0, f.getName().length() - EXTENSION.length());
+            index.values().removeIf(entry -> hashOf((String) entry).equals(hash));
+        }
+    }
+
+    private static String hashOf(String entry) {
+        int space = entry.indexOf(' ');
+        return space < 0 ? entry : entry.substring(0, space);
+    }
+
+    private boolean hasEntry(String hash) {
+        for (Object entry : index.values()) {
+            if (hashOf((String) entry).equals(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A key that changes whenever the source may have changed, cheap enough to check before every
+     * play: resource ids are renumbered between builds, so for resources it is the app version and
+     * install time, and files or content can be replaced in place, so for those it is their size
+     * and last modified time.
+     */
+    private String validityKey(Uri uri) {
+        String scheme = uri.getScheme();
+        if (getIdFromRawResourceUri(uri) > 0 || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)) {
+            try {
+                PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+                return "app:" + PackageInfoCompat.getLongVersionCode(info) + ":" + info.lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                return "app";
+            }
+        }
+        if (ContentResolver.SCHEME_FILE.equals(scheme) && uri.getPath() != null) {
+            File source = new File(uri.getPath());
+            return "file:" + source.length() + ":" + source.lastModified();
+        }
+        long size = -1;
+        long modified = -1;
+        try (Cursor cursor = context.getContentResolver().query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                size = getLong(cursor, OpenableColumns.SIZE);
+                modified = Math.max(getLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED),
+                        getLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED));
+            }
+        } catch (Exception ignored) {
+            // not every provider can be queried
+        }
+        if (size < 0) {
+            try (AssetFileDescriptor afd = openFd(uri)) {
+                if (afd != null) {
+                    size = afd.getLength();
+                }
+            } catch (Exception ignored) {
+            }
+        }
+        return "content:" + size + ":" + modified;
+    }
+
+    private static long getLong(Cursor cursor, String column) {
+        int i = cursor.getColumnIndex(column);
+        return i < 0 || cursor.isNull(i) ? -1 : cursor.getLong(i);
+    }
+
+    private void saveIndex() {
+        save(index, indexFile);
+    }
+
+    private static void save(Properties properties, File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "could not save " + file, e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "could not replace " + file);
+        }
+    }
+
+    private InputStream openStream(Uri uri) throws IOException {
+        int id = getIdFromRawResourceUri(uri);
+        InputStream in = id > 0
+                ? context.getResources().openRawResource(id)
+                : context.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("could not open " + uri);
+        }
+        return in;
+    }
+
+    /** @return null if the source is compressed in the APK */
+    @Nullable
+    private AssetFileDescriptor openFd(Uri uri) throws IOException {
+        int id = getIdFromRawResourceUri(uri);
+        if (id > 0) {
+            try {
+                return context.getResources().openRawResourceFd(id);
+            } catch (Resources.NotFoundException e) {
+                // thrown for a compressed resource, openRawResource() can still read it
+                return null;
+            }
+        }
+        ContentResolver resolver = context.getContentResolver();
+        return resolver.openAssetFileDescriptor(uri, "r");
+    }
+
+    private static String sha256(InputStream in) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void decodeToWav(MediaExtractor extractor, File out) throws IOException {
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = extractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+        if (format == null) {
+            throw new IOException("no audio track");
+        }
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw")) {
+            codec.configure(format, null, null, 0);
+            codec.start();
+            raf.setLength(0);
+            raf.write(new byte[WAV_HEADER_SIZE]);
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] chunk = new byte[0];
+            long dataSize = 0;
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(inputIndex);
+                        int size = input == null ? -1 : extractor.readSampleData(input, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int outputIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    if (outputFormat.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                            && outputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING) != AudioFormat.ENCODING_PCM_16BIT) {
+                        throw new IOException("decoder does not output 16 bit PCM");
+                    }
+                } else if (outputIndex >= 0) {
+                    ByteBuffer output = codec.getOutputBuffer(outputIndex);
+                    if (output != null && info.size > 0) {
+                        if (chunk.length < info.size) {
+                            chunk = new byte[info.size];
+                        }
+                        output.position(info.offset);
+                        output.get(chunk, 0, info.size);
+                        raf.write(chunk, 0, info.size);
+                        dataSize += info.size;
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        outputDone = true;
+                    }
+                }
+            }
+
+            raf.seek(0);
+            raf.write(wavHeader(sampleRate, channels, dataSize));
+        } finally {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignored) {
+                // not started
+            }
+            codec.release();
+        }
+    }
+
+    private static byte[] wavHeader(int sampleRate, int channels, long dataSize) {
+        int blockAlign = channels * 2;
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt((int) (36 + dataSize));
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '}).putInt(16)
+                .putShort((short) 1) // PCM
+                .putShort((short) channels)
+                .putInt(sampleRate)
+                .putInt(sampleRate * blockAlign)
+                .putShort((short) blockAlign)
+                .putShort((short) 16);
+        header.put(new byte[]{'d', 'a', 't', 'a'}).putInt((int) dataSize);
+        return header.array();
+    }
+}
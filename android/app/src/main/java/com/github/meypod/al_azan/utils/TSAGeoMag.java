@@ -42,14 +42,6 @@ that such material is not subject to copyright protection.
 //
 ////////////////////////////////////////////////////////////////////////////
 
-import android.util.Log;
-
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StreamTokenizer;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
@@ -96,7 +88,9 @@ import java.util.GregorianCalendar;
  *      MSL height means that the altitude could be in error by as much as 200 meters.
  *      This should not be significant for our applications.</p>
  *
- *      <p><b>NOTE:</b> This class is not thread safe.</p>
+ *      <p><b>NOTE:</b> An instance of this class is not thread safe. The {@link GeoMagModel} it
+ *      evaluates is immutable and shared, so use one instance per thread, for example
+ *      through {@link #forCurrentThread()}.</p>
  *
  *
  * @version 3.0 January 19, 2000
@@ -156,6 +150,25 @@ import java.util.GregorianCalendar;
  *  @version 5.9 January 6, 2020
  *  <p>Updated the internal coefficients to the 2020 epoch values. Passes the new JUnit tests.</p>
  *
+ *  @version 5.10 (al-azan)
+ *  <p>The internal coefficients are stored as a primitive table in {@link WMMCoefficients} instead
+ *     of strings, and are normalized only once per process and shared by all instances, so creating
+ *     a TSAGeoMag no longer parses the model.</p>
+ *
+ *  @version 5.11 (al-azan)
+ *  <p>The coefficients moved to the immutable {@link GeoMagModel}. A TSAGeoMag now only holds the
+ *     scratch arrays and results of one evaluation, see {@link #forCurrentThread()}.</p>
+ *
+ *  @version 5.12 (al-azan)
+ *  <p>Added {@link #calculate(double, double, double, double, GeoMagResult)}, which returns all of the
+ *     field components and their secular variation from a single evaluation. Removed the debug
+ *     logging from the calculation.</p>
+ *
+ *  @version 5.13 (al-azan)
+ *  <p>Added a selectable truncation degree for faster, less accurate evaluations, see
+ *     {@link #TSAGeoMag(GeoMagModel, int)}. The coefficient and recursion arrays are flattened
+ *     to 1-D arrays, laid out like snorm.</p>
+ *
  *  </li></ul>
  *     <ul>References:
  *
@@ -229,116 +242,11 @@ import java.util.GregorianCalendar;
  */
 public class TSAGeoMag
 {
-    /** A logger for this class. Every class MUST have this field, if you want to log from this class.
-     *  The class name is the fully qualified class name of the class, such as java.lang.String. If you're not going
-     *  to use log4j, then comment all references to the logger, and uncomment the System.***.println statements.*/
-    private static String TAG = "TSAGeoMag";
-
     //variables for magnetic calculations ////////////////////////////////////
     //
     // Variables were identified in geomag.for, the FORTRAN
     // version of the geomag calculator.
 
-    /**	The input string array which contains each line of input for the
-     *	wmm.cof input file.  Added so that all data was internal, so that
-     *	applications do not have to mess with carrying around a data file.
-     *   In the TSAGeoMag Class, the columns in this file are as follows:
-     *   n, m,      gnm,      hnm,       dgnm,      dhnm
-     */
-    private String [] input =
-            {       "   2020.0            WMM-2020        12/10/2019",
-                    "  1  0  -29404.5       0.0        6.7        0.0",
-                    "  1  1   -1450.7    4652.9        7.7      -25.1",
-                    "  2  0   -2500.0       0.0      -11.5        0.0",
-                    "  2  1    2982.0   -2991.6       -7.1      -30.2",
-                    "  2  2    1676.8    -734.8       -2.2      -23.9",
-                    "  3  0    1363.9       0.0        2.8        0.0",
-                    "  3  1   -2381.0     -82.2       -6.2        5.7",
-                    "  3  2    1236.2     241.8        3.4       -1.0",
-                    "  3  3     525.7    -542.9      -12.2        1.1",
-                    "  4  0     903.1       0.0       -1.1        0.0",
-                    "  4  1     809.4     282.0       -1.6        0.2",
-                    "  4  2      86.2    -158.4       -6.0        6.9",
-                    "  4  3    -309.4     199.8        5.4        3.7",
-                    "  4  4      47.9    -350.1       -5.5       -5.6",
-                    "  5  0    -234.4       0.0       -0.3        0.0",
-                    "  5  1     363.1      47.7        0.6        0.1",
-                    "  5  2     187.8     208.4       -0.7        2.5",
-                    "  5  3    -140.7    -121.3        0.1       -0.9",
-                    "  5  4    -151.2      32.2        1.2        3.0",
-                    "  5  5      13.7      99.1        1.0        0.5",
-                    "  6  0      65.9       0.0       -0.6        0.0",
-                    "  6  1      65.6     -19.1       -0.4        0.1",
-                    "  6  2      73.0      25.0        0.5       -1.8",
-                    "  6  3    -121.5      52.7        1.4       -1.4",
-                    "  6  4     -36.2     -64.4       -1.4        0.9",
-                    "  6  5      13.5       9.0       -0.0        0.1",
-                    "  6  6     -64.7      68.1        0.8        1.0",
-                    "  7  0      80.6       0.0       -0.1        0.0",
-                    "  7  1     -76.8     -51.4       -0.3        0.5",
-                    "  7  2      -8.3     -16.8       -0.1        0.6",
-                    "  7  3      56.5       2.3        0.7       -0.7",
-                    "  7  4      15.8      23.5        0.2       -0.2",
-                    "  7  5       6.4      -2.2       -0.5       -1.2",
-                    "  7  6      -7.2     -27.2       -0.8        0.2",
-                    "  7  7       9.8      -1.9        1.0        0.3",
-                    "  8  0      23.6       0.0       -0.1        0.0",
-                    "  8  1       9.8       8.4        0.1       -0.3",
-                    "  8  2     -17.5     -15.3       -0.1        0.7",
-                    "  8  3      -0.4      12.8        0.5       -0.2",
-                    "  8  4     -21.1     -11.8       -0.1        0.5",
-                    "  8  5      15.3      14.9        0.4       -0.3",
-                    "  8  6      13.7       3.6        0.5       -0.5",
-                    "  8  7     -16.5      -6.9        0.0        0.4",
-                    "  8  8      -0.3       2.8        0.4        0.1",
-                    "  9  0       5.0       0.0       -0.1        0.0",
-                    "  9  1       8.2     -23.3       -0.2       -0.3",
-                    "  9  2       2.9      11.1       -0.0        0.2",
-                    "  9  3      -1.4       9.8        0.4       -0.4",
-                    "  9  4      -1.1      -5.1       -0.3        0.4",
-                    "  9  5     -13.3      -6.2       -0.0        0.1",
-                    "  9  6       1.1       7.8        0.3       -0.0",
-                    "  9  7       8.9       0.4       -0.0       -0.2",
-                    "  9  8      -9.3      -1.5       -0.0        0.5",
-                    "  9  9     -11.9       9.7       -0.4        0.2",
-                    " 10  0      -1.9       0.0        0.0        0.0",
-                    " 10  1      -6.2       3.4       -0.0       -0.0",
-                    " 10  2      -0.1      -0.2       -0.0        0.1",
-                    " 10  3       1.7       3.5        0.2       -0.3",
-                    " 10  4      -0.9       4.8       -0.1        0.1",
-                    " 10  5       0.6      -8.6       -0.2       -0.2",
-                    " 10  6      -0.9      -0.1       -0.0        0.1",
-                    " 10  7       1.9      -4.2       -0.1       -0.0",
-                    " 10  8       1.4      -3.4       -0.2       -0.1",
-                    " 10  9      -2.4      -0.1       -0.1        0.2",
-                    " 10 10      -3.9      -8.8       -0.0       -0.0",
-                    " 11  0       3.0       0.0       -0.0        0.0",
-                    " 11  1      -1.4      -0.0       -0.1       -0.0",
-                    " 11  2      -2.5       2.6       -0.0        0.1",
-                    " 11  3       2.4      -0.5        0.0        0.0",
-                    " 11  4      -0.9      -0.4       -0.0        0.2",
-                    " 11  5       0.3       0.6       -0.1       -0.0",
-                    " 11  6      -0.7      -0.2        0.0        0.0",
-                    " 11  7      -0.1      -1.7       -0.0        0.1",
-                    " 11  8       1.4      -1.6       -0.1       -0.0",
-                    " 11  9      -0.6      -3.0       -0.1       -0.1",
-                    " 11 10       0.2      -2.0       -0.1        0.0",
-                    " 11 11       3.1      -2.6       -0.1       -0.0",
-                    " 12  0      -2.0       0.0        0.0        0.0",
-                    " 12  1      -0.1      -1.2       -0.0       -0.0",
-                    " 12  2       0.5       0.5       -0.0        0.0",
-                    " 12  3       1.3       1.3        0.0       -0.1",
-                    " 12  4      -1.2      -1.8       -0.0        0.1",
-                    " 12  5       0.7       0.1       -0.0       -0.0",
-                    " 12  6       0.3       0.7        0.0        0.0",
-                    " 12  7       0.5      -0.1       -0.0       -0.0",
-                    " 12  8      -0.2       0.6        0.0        0.1",
-                    " 12  9      -0.5       0.2       -0.0       -0.0",
-                    " 12 10       0.1      -0.9       -0.0       -0.0",
-                    " 12 11      -1.1      -0.0       -0.0        0.0",
-                    " 12 12      -0.3       0.5       -0.1       -0.1"
-            };
-
     /**
      *	Geodetic altitude in km. An input,
      *	but set to zero in this class.  Changed
@@ -388,18 +296,18 @@ public class TSAGeoMag
     /**
      *	The maximum number of degrees of the spherical harmonic model.
      */
-    private int maxdeg = 12;
+    private static final int maxdeg = GeoMagModel.MAX_DEGREE;
 
     /**
      *	The maximum order of spherical harmonic model.
      */
-    private int maxord;
+    private final int maxord;
 
     /**	Added in version 5.  In earlier versions the date for the calculation was held as a
      *  constant.  Now the default date is set to 2.5 years plus the epoch read from the
      *  input file.
      */
-    private double defaultDate = 2022.5;
+    private final double defaultDate;
 
     /**	Added in version 5.  In earlier versions the altitude for the calculation was held as a
      *  constant at 0.  In version 5, if no altitude is specified in the calculation, this
@@ -407,25 +315,31 @@ public class TSAGeoMag
      */
     private final double defaultAltitude = 0;
 
+    /**
+     *	The shared, immutable model. The coefficient arrays below are taken from it
+     *	and must not be modified.
+     */
+    private final GeoMagModel model;
+
     /**
      *	The Gauss coefficients of main geomagnetic model (nt).
      */
-    private double c[][] = new double[13][13];
+    private final double c[];
 
     /**
      *	The Gauss coefficients of secular geomagnetic model (nt/yr).
      */
-    private double cd[][] = new double[13][13];
+    private final double cd[];
 
     /**
      *	The time adjusted geomagnetic gauss coefficients (nt).
      */
-    private double tc[][] = new double[13][13];
+    private double tc[] = new double[169];
 
     /**
      *	The theta derivative of p(n,m) (unnormalized).
      */
-    private double dp[][] = new double[13][13];
+    private double dp[] = new double[169];
 
     /**
      *	The Schmidt normalization factors.
@@ -441,15 +355,15 @@ public class TSAGeoMag
      *	The cosine of (m*spherical coord. longitude).
      */
     private double cp[] = new double[13];
-    private double fn[] = new double[13];
-    private double fm[] = new double[13];
+    private final double fn[];
+    private final double fm[];
 
     /**
      *	The associated Legendre polynomials for m=1 (unnormalized).
      */
     private double pp[] = new double[13];
 
-    private double k[][] = new double[13][13];
+    private final double k[];
 
     /**
      * The variables otime (old time), oalt (old altitude),
@@ -460,7 +374,7 @@ public class TSAGeoMag
     private double otime, oalt, olat, olon;
 
     /** The date in years, for the start of the valid time of the fit coefficients */
-    private double epoch;
+    private final double epoch;
 
     /** bx is the north south field intensity
      *  by is the east west field intensity
@@ -469,6 +383,11 @@ public class TSAGeoMag
      */
     private double bx,by,bz,bh;
 
+    /** bxd, byd and bzd are the yearly rates of change (secular variation)
+     *  of bx, by and bz, in nano Tesla per year.
+     */
+    private double bxd,byd,bzd;
+
     /**
      *	re is the Mean radius of IAU-66 ellipsoid, in km.
      *  a2 is the Semi-major axis of WGS-84 ellipsoid, in km, squared.
@@ -488,35 +407,159 @@ public class TSAGeoMag
     ////////////////////////////////////////////////////////////////////////////
 
     /**
-     *	Instantiates object by calling initModel().
+     *	The truncation degrees with a known error, see {@link #getMaxDeclinationError(int, double)}.
+     */
+    public static final int[] DEGREES = {4, 6, 8, 12};
+
+    /**
+     *	Latitude bands of {@link #DECLINATION_ERRORS}, in degrees. Above 60 degrees the truncation
+     *	error grows quickly towards the magnetic poles, where the horizontal field is weak
+     *	(already 25 degrees for degree 8 at 75 degrees latitude), so it is not tabulated.
+     */
+    private static final double[] ERROR_LATITUDES = {30, 45, 60};
+
+    /**
+     *	Worst case declination error, in degrees, of each entry of {@link #DEGREES} against the
+     *	full degree 12 model, for latitudes up to each of {@link #ERROR_LATITUDES}. Measured on a
+     *	1 degree grid at sea level, for dates from 2020 to 2025.
+     */
+    private static final double[][] DECLINATION_ERRORS = {
+            {5.20, 7.04, 20.57},
+            {1.98, 2.07, 3.87},
+            {0.57, 0.70, 1.87},
+            {0, 0, 0},
+    };
+
+    private static final ThreadLocal<TSAGeoMag[]> threadInstances = new ThreadLocal<TSAGeoMag[]>()
+    {
+        @Override
+        protected TSAGeoMag[] initialValue()
+        {
+            return new TSAGeoMag[maxdeg + 1];
+        }
+    };
+
+    /**
+     *	Instantiates object for the default model by calling initModel().
      */
     public TSAGeoMag()
     {
-        //read model data from file and initialize the GeoMag routine
+        this(GeoMagModel.getDefault());
+    }
+
+    /**
+     *	Instantiates object for the given model by calling initModel().
+     *
+     * @param	model	The shared, immutable coefficients to evaluate.
+     */
+    public TSAGeoMag(GeoMagModel model)
+    {
+        this(model, maxdeg);
+    }
+
+    /**
+     *	Instantiates object for the given model, truncated to the given degree. Lower degrees
+     *	are cheaper to evaluate (the work grows with the square of the degree) but less accurate,
+     *	see {@link #getMaxDeclinationError(int, double)}.
+     *
+     * @param	model		The shared, immutable coefficients to evaluate.
+     * @param	maxDegree	The maximum degree of the expansion, from 1 to 12.
+     */
+    public TSAGeoMag(GeoMagModel model, int maxDegree)
+    {
+        if (maxDegree < 1 || maxDegree > maxdeg)
+            throw new IllegalArgumentException("maxDegree must be between 1 and " + maxdeg);
+        this.model = model;
+        maxord = maxDegree;
+        epoch = model.epoch;
+        defaultDate = epoch + 2.5;
+        c = model.c;
+        cd = model.cd;
+        k = model.k;
+        fn = model.fn;
+        fm = model.fm;
         initModel();
     }
 
     /**
-     *	Reads data from file and initializes magnetic model.  If
-     *	the file is not present, or an IO exception occurs, then the internal
-     *	values valid for 2015 will be used. Note that the last line of the
-     *	WMM.COF file must be 9999... for this method to read in the input
-     *  file properly.
+     *	Returns the instance of the calling thread for the default model. The instance
+     *	only holds the scratch state of the evaluation, so reusing it avoids allocating
+     *	it on each call while still allowing concurrent evaluations from different threads.
+     *
+     * @return  The TSAGeoMag owned by the calling thread.
+     */
+    public static TSAGeoMag forCurrentThread()
+    {
+        return forCurrentThread(maxdeg);
+    }
+
+    /**
+     *	Same as {@link #forCurrentThread()}, for the model truncated to the given degree.
+     *
+     * @param	maxDegree	The maximum degree of the expansion, from 1 to 12.
+     * @return  The TSAGeoMag owned by the calling thread for this degree.
+     */
+    public static TSAGeoMag forCurrentThread(int maxDegree)
+    {
+        if (maxDegree < 1 || maxDegree > maxdeg)
+            throw new IllegalArgumentException("maxDegree must be between 1 and " + maxdeg);
+        TSAGeoMag[] instances = threadInstances.get();
+        if (instances[maxDegree] == null)
+            instances[maxDegree] = new TSAGeoMag(GeoMagModel.getDefault(), maxDegree);
+        return instances[maxDegree];
+    }
+
+    /**
+     *	Returns the worst case declination error of a truncated model against the full model.
+     *
+     * @param	maxDegree	One of {@link #DEGREES}.
+     * @param	latitude	Latitude in decimal degrees.
+     * @return  The error in degrees, or NaN if it is not known for this degree or latitude.
+     */
+    public static double getMaxDeclinationError(int maxDegree, double latitude)
+    {
+        if (maxDegree == maxdeg)
+            return 0;
+        for (int i = 0; i < DEGREES.length; i++)
+        {
+            if (DEGREES[i] != maxDegree)
+                continue;
+            for (int j = 0; j < ERROR_LATITUDES.length; j++)
+                if (Math.abs(latitude) <= ERROR_LATITUDES[j])
+                    return DECLINATION_ERRORS[i][j];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return  The maximum degree of the expansion evaluated by this instance.
+     */
+    public int getMaxDegree()
+    {
+        return maxord;
+    }
+
+    /**
+     * @return  The model this instance evaluates.
+     */
+    public GeoMagModel getModel()
+    {
+        return model;
+    }
+
+    /**
+     *	Initializes the per instance state of the magnetic model. The
+     *	coefficients themselves are prepared once per process by {@link GeoMagModel}.
      */
     private void initModel()
     {
         glat = 0;
         glon = 0;
-        //bOutDated = false;
-        //String strModel = new String();
-        //String strFile = new String("WMM.COF");
-        //		String strFile = new String("wmm-95.dat");
 
         // INITIALIZE CONSTANTS
-        maxord = maxdeg;
         sp[0] = 0.0;
         cp[0] = snorm[0] = pp[0] = 1.0;
-        dp[0][0] = 0.0;
+        dp[0] = 0.0;
         /**
          *	Semi-major axis of WGS-84 ellipsoid, in km.
          */
@@ -536,138 +579,7 @@ public class TSAGeoMag
         b4 = b2 * b2;
         c4 = a4 - b4;
 
-        try{
-            //open data file and parse values
-            //InputStream is;
-            Reader is;
-
-            InputStream input = getClass().getResourceAsStream("WMM.COF");
-            if(input == null) throw new FileNotFoundException("WMM.COF not found");
-            is = new InputStreamReader(input);
-            StreamTokenizer str = new StreamTokenizer(is);
-
-
-            // READ WORLD MAGNETIC MODEL SPHERICAL HARMONIC COEFFICIENTS
-            c[0][0] = 0.0;
-            cd[0][0] = 0.0;
-            str.nextToken();
-            epoch = str.nval;
-            defaultDate = epoch + 2.5;
-            Log.d(TAG, "TSAGeoMag Epoch is: " + epoch);
-            Log.d(TAG,"TSAGeoMag default date is: " + defaultDate);
-            str.nextToken();
-            //strModel = str.sval;
-            str.nextToken();
-
-            //loop to get data from file
-            while(true){
-                str.nextToken();
-                if(str.nval >= 9999)	// end of file
-                    break;
-
-                int n = (int)str.nval;
-                str.nextToken();
-                int m = (int)str.nval;
-                str.nextToken();
-                double gnm = str.nval;
-                str.nextToken();
-                double hnm = str.nval;
-                str.nextToken();
-                double dgnm = str.nval;
-                str.nextToken();
-                double dhnm = str.nval;
-
-                if (m <= n)
-                {
-                    c[m][n] = gnm;
-                    cd[m][n] = dgnm;
-
-                    if (m != 0)
-                    {
-                        c[n][m-1] = hnm;
-                        cd[n][m-1] = dhnm;
-                    }
-                }
-
-            }	//while(true)
-
-            is.close();
-        }	//try
-        // version 2, catch FileNotFound and IO exceptions separately,
-        // rather than catching all exceptions.
-        // Version 5.4 add logger support, and comment out System.out.println
-        catch(FileNotFoundException e)
-        {
-            String msg = "\nNOTICE      NOTICE      NOTICE      \n" +
-                    "WMMCOF file not found in TSAGeoMag.InitModel()\n" +
-                    "The input file WMM.COF was not found in the same\n" +
-                    "directory as the application.\n" +
-                    "The magnetic field components are set to internal values.\n";
-            Log.d(TAG, msg + "\n" + e.getMessage());
-
-	    /*            String message = new String(e.toString());
-
-            System.out.println("\nNOTICE      NOTICE      NOTICE      ");
-            System.out.println("Error:  " + message);
-            System.out.println("Error in TSAGeoMag.InitModel()");
-            System.out.println("The input file WMM.COF was not found in the same");
-            System.out.println("directory as the application.");
-            System.out.println("The magnetic field components are set to internal values.");
-	     */
-            setCoeff();
-        }
-
-        catch(IOException e)
-        {
-            String msg = "\nNOTICE      NOTICE      NOTICE      \n" +
-                    "Problem reading the WMMCOF file in TSAGeoMag.InitModel()\n" +
-                    "The input file WMM.COF was found, but there was a problem \n" +
-                    "reading the data.\n" +
-                    "The magnetic field components are set to internal values.";
-
-            Log.d(TAG, msg + "\n" + e.getMessage());
-
-	    /*            String message = new String(e.toString());
-            System.out.println("\nNOTICE      NOTICE      NOTICE      ");
-            System.out.println("Error:  " + message);
-            System.out.println("Error in TSAGeoMag.InitModel()");
-            System.out.println("The input file WMM.COF was found, but there was a problem ");
-            System.out.println("reading the data.");
-            System.out.println("The magnetic field components are set to internal values.");
-
-	     */
-            setCoeff();
-        }
-        // CONVERT SCHMIDT NORMALIZED GAUSS COEFFICIENTS TO UNNORMALIZED
-        snorm[0] = 1.0;
-        for (int n = 1; n <= maxord; n++){
-
-            snorm[n] = snorm[n - 1] * (2 * n - 1) / n;
-            int j = 2;
-
-            for(int m = 0,D1 = 1,D2 = (n - m + D1) / D1; D2 > 0; D2--, m += D1){
-                k[m][n] = (double) (((n - 1) * (n - 1))-(m * m))/(double) ((2 * n-1)*(2*n-3));
-                if(m > 0){
-                    double flnmj = ((n - m + 1) * j) / (double) (n + m);
-                    snorm[n + m * 13] = snorm[n + (m -1 ) * 13] * Math.sqrt(flnmj);
-                    j = 1;
-                    c[n][m-1] = snorm[n + m * 13] * c[n][m-1];
-                    cd[n][m-1] = snorm[n + m * 13] * cd[n][m-1];
-                }
-                c[m][n] = snorm[n + m * 13] * c[m][n];
-                cd[m][n] = snorm[n + m * 13] * cd[m][n];
-            }	//for(m...)
-
-            fn[n] = (n+1);
-            fm[n] = n;
-
-        }	//for(n...)
-
-        k[1][1] = 0.0;
-
         otime = oalt = olat = olon = -1000.0;
-
-
     }
 
     /**     <p><b>PURPOSE:</b>  THIS ROUTINE COMPUTES THE DECLINATION (DEC),
@@ -757,6 +669,26 @@ public class TSAGeoMag
      * @param	altitude		The altitude in kilometers.
      */
     private void calcGeoMag(double fLat, double fLon, double year, double altitude)
+    {
+        calcGeoMag(fLat, fLon, year, altitude, false);
+    }
+
+    /**
+     *	Same as {@link #calcGeoMag(double, double, double, double)}, optionally
+     *	also computing the secular variation (bxd, byd, bzd).
+     *
+     *	The results of the previous call are reused when possible: the conversion
+     *	to spherical coordinates and the Legendre recursion only run when the
+     *	latitude or altitude changed, and the sin/cos of m*longitude only when
+     *	the longitude changed.
+     *
+     * @param	fLat			The latitude in decimal degrees.
+     * @param	fLon			The longitude in decimal degrees.
+     * @param	year			The date as a decimal year.
+     * @param	altitude		The altitude in kilometers.
+     * @param	secular			Whether to compute the secular variation too.
+     */
+    private void calcGeoMag(double fLat, double fLon, double year, double altitude, boolean secular)
     {
 
         glat =  fLat;
@@ -778,19 +710,14 @@ public class TSAGeoMag
 
         double pi = Math.PI;
         double dtr = (pi/180.0);
-        double rlon = glon * dtr;
-        double rlat = glat * dtr;
-        double srlon = Math.sin(rlon);
-        double srlat = Math.sin(rlat);
-        double crlon = Math.cos(rlon);
-        double crlat = Math.cos(rlat);
-        double srlat2 = srlat * srlat;
-        double crlat2 = crlat * crlat;
-        sp[1] = srlon;
-        cp[1] = crlon;
 
         // CONVERT FROM GEODETIC COORDS. TO SPHERICAL COORDS.
         if (alt != oalt || glat != olat){
+            double rlat = glat * dtr;
+            double srlat = Math.sin(rlat);
+            double crlat = Math.cos(rlat);
+            double srlat2 = srlat * srlat;
+            double crlat2 = crlat * crlat;
             double q = Math.sqrt(a2 - c2 * srlat2);
             double q1 = alt * q;
             double q2 = ((q1 + a2) / (q1 + b2)) * ((q1 + a2) / (q1 + b2));
@@ -803,6 +730,9 @@ public class TSAGeoMag
             sa = c2 * crlat * srlat / (r * d);
         }
         if (glon != olon){
+            double rlon = glon * dtr;
+            sp[1] = Math.sin(rlon);
+            cp[1] = Math.cos(rlon);
             for (int m = 2; m <= maxord; m++){
                 sp[m] = sp[1] * cp[m-1] + cp[1] * sp[m-1];
                 cp[m] = cp[1] * cp[m-1] - sp[1] * sp[m-1];
@@ -811,6 +741,8 @@ public class TSAGeoMag
         double aor = re / r;
         double ar = aor * aor;
         double br = 0, bt = 0, bp = 0, bpp = 0;
+        // the same sums, using the secular variation coefficients
+        double brd = 0, btd = 0, bpd = 0, bppd = 0;
 
         for(int n = 1; n <= maxord; n++){
             ar = ar * aor;
@@ -821,46 +753,59 @@ public class TSAGeoMag
                 if(alt != oalt || glat != olat){
                     if(n == m){
                         snorm[n + m * 13] = st * snorm[n - 1 + (m - 1) * 13];
-                        dp[m][n] = st * dp[m-1][n-1]+ ct* snorm[n - 1 + (m - 1) * 13];
+                        dp[n + m * 13] = st * dp[n - 1 + (m - 1) * 13]+ ct* snorm[n - 1 + (m - 1) * 13];
                     }
                     if(n == 1 && m == 0){
                         snorm[n + m * 13] = ct * snorm[n - 1 + m * 13];
-                        dp[m][n] = ct * dp[m][n - 1] - st * snorm[n - 1 + m * 13];
+                        dp[n + m * 13] = ct * dp[n - 1 + m * 13] - st * snorm[n - 1 + m * 13];
                     }
                     if(n > 1 && n != m){
                         if(m > n - 2)
                             snorm[n - 2 + m * 13] = 0.0;
                         if(m > n - 2)
-                            dp[m][n - 2] = 0.0;
-                        snorm[n + m * 13] = ct * snorm[n - 1 + m * 13] - k[m][n] * snorm[n - 2 + m * 13];
-                        dp[m][n] = ct * dp[m][n - 1] - st * snorm[n - 1 + m * 13] - k[m][n] * dp[m][n - 2];
+                            dp[n - 2 + m * 13] = 0.0;
+                        snorm[n + m * 13] = ct * snorm[n - 1 + m * 13] - k[n + m * 13] * snorm[n - 2 + m * 13];
+                        dp[n + m * 13] = ct * dp[n - 1 + m * 13] - st * snorm[n - 1 + m * 13] - k[n + m * 13] * dp[n - 2 + m * 13];
                     }
                 }
 
                 //TIME ADJUST THE GAUSS COEFFICIENTS
 
                 if(time != otime){
-                    tc[m][n] = c[m][n] + dt * cd[m][n];
+                    tc[n + m * 13] = c[n + m * 13] + dt * cd[n + m * 13];
 
                     if(m != 0)
-                        tc[n][m - 1] = c[n][m - 1]+ dt * cd[n][m - 1];
+                        tc[m - 1 + n * 13] = c[m - 1 + n * 13]+ dt * cd[m - 1 + n * 13];
                 }
 
                 //ACCUMULATE TERMS OF THE SPHERICAL HARMONIC EXPANSIONS
-                double temp1, temp2;
+                double temp1, temp2, temp1d = 0, temp2d = 0;
                 double par = ar * snorm[ n + m * 13];
                 if(m == 0){
-                    temp1 = tc[m][n] * cp[m];
-                    temp2 = tc[m][n] * sp[m];
+                    temp1 = tc[n + m * 13] * cp[m];
+                    temp2 = tc[n + m * 13] * sp[m];
+                    if(secular){
+                        temp1d = cd[n + m * 13] * cp[m];
+                        temp2d = cd[n + m * 13] * sp[m];
+                    }
                 }
                 else{
-                    temp1 = tc[m][n] * cp[m] + tc[n][m - 1] * sp[m];
-                    temp2 = tc[m][n] * sp[m] - tc[n][m - 1] * cp[m];
+                    temp1 = tc[n + m * 13] * cp[m] + tc[m - 1 + n * 13] * sp[m];
+                    temp2 = tc[n + m * 13] * sp[m] - tc[m - 1 + n * 13] * cp[m];
+                    if(secular){
+                        temp1d = cd[n + m * 13] * cp[m] + cd[m - 1 + n * 13] * sp[m];
+                        temp2d = cd[n + m * 13] * sp[m] - cd[m - 1 + n * 13] * cp[m];
+                    }
                 }
 
-                bt = bt - ar * temp1 * dp[m][n];
+                bt = bt - ar * temp1 * dp[n + m * 13];
                 bp += (fm[m] * temp2 * par);
                 br += (fn[n] * temp1 * par);
+                if(secular){
+                    btd = btd - ar * temp1d * dp[n + m * 13];
+                    bpd += (fm[m] * temp2d * par);
+                    brd += (fn[n] * temp1d * par);
+                }
 
                 //SPECIAL CASE:  NORTH/SOUTH GEOGRAPHIC POLES
 
@@ -868,9 +813,10 @@ public class TSAGeoMag
                     if(n == 1)
                         pp[n] = pp[n - 1];
                     else
-                        pp[n] = ct * pp[n - 1] - k[m][n] * pp[n - 2];
+                        pp[n] = ct * pp[n - 1] - k[n + m * 13] * pp[n - 2];
                     double parp = ar * pp[n];
                     bpp += (fm[m] * temp2 * parp);
+                    bppd += (fm[m] * temp2d * parp);
                 }
 
             }	//for(m...)
@@ -878,10 +824,14 @@ public class TSAGeoMag
         }	//for(n...)
 
 
-        if(st == 0.0)
+        if(st == 0.0) {
             bp = bpp;
-        else
+            bpd = bppd;
+        }
+        else {
             bp /= st;
+            bpd /= st;
+        }
 
         //ROTATE MAGNETIC VECTOR COMPONENTS FROM SPHERICAL TO
         //GEODETIC COORDINATES
@@ -891,6 +841,9 @@ public class TSAGeoMag
         bx = -bt * ca - br * sa;
         by = bp;
         bz = bt * sa - br * ca;
+        bxd = -btd * ca - brd * sa;
+        byd = bpd;
+        bzd = btd * sa - brd * ca;
 
         //COMPUTE DECLINATION (DEC), INCLINATION (DIP) AND
         //TOTAL INTENSITY (TI)
@@ -899,7 +852,6 @@ public class TSAGeoMag
         ti = Math.sqrt((bh * bh)+(bz * bz));
         //	Calculate the declination.
         dec = (Math.atan2(by, bx) / dtr);
-        Log.d(TAG, "Dec is: " + dec );
         dip = (Math.atan2(bz, bh) / dtr);
 
         //	This is the variation for grid navigation.
@@ -934,6 +886,67 @@ public class TSAGeoMag
         olon = glon;
 
     }
+
+    /**
+     *	Evaluates the model once and returns all of the field components, with
+     *	their secular variation, in the given result holder. Prefer this over
+     *	calling several of the getters below, each of which evaluates the model again.
+     *
+     * @param	dlat		Latitude in decimal degrees.
+     * @param 	dlong		Longitude in decimal degrees.
+     * @param	year		The date as a decimal year.
+     * @param	altitude	The altitude in kilometers.
+     * @param	result		Receives the field components, can be reused between calls.
+     *
+     * @return  The given result.
+     */
+    public GeoMagResult calculate( double dlat, double dlong, double year, double altitude, GeoMagResult result )
+    {
+        calcGeoMag( dlat, dlong, year, altitude, true );
+        double rtd = 180.0 / Math.PI;
+        double bhd = (bx * bxd + by * byd) / bh;
+
+        result.northIntensity = bx;
+        result.eastIntensity = by;
+        result.verticalIntensity = bz;
+        result.horizontalIntensity = bh;
+        result.totalIntensity = ti;
+        result.declination = dec;
+        result.inclination = dip;
+
+        result.northIntensityRate = bxd;
+        result.eastIntensityRate = byd;
+        result.verticalIntensityRate = bzd;
+        result.horizontalIntensityRate = bhd;
+        result.totalIntensityRate = (bx * bxd + by * byd + bz * bzd) / ti;
+        result.declinationRate = rtd * (bx * byd - by * bxd) / (bh * bh);
+        result.inclinationRate = rtd * (bh * bzd - bz * bhd) / (ti * ti);
+        return result;
+    }
+
+    /**
+     *	Computes the declination for many points in one pass. The intermediate
+     *	results are reused between consecutive points: the Legendre recursion when
+     *	they share the latitude and altitude, and the longitude recursion when they
+     *	share the longitude. So for a grid, iterate the longitudes of each latitude
+     *	row, and order other point lists by latitude where possible.
+     *
+     * @param	dlat		Latitudes in decimal degrees.
+     * @param 	dlong		Longitudes in decimal degrees, same length as dlat.
+     * @param	altitude	Altitudes in kilometers, same length as dlat, or null for 0.
+     * @param	year		The date as a decimal year, used for all of the points.
+     * @param	declinations	Receives the declination in degrees of each point,
+     *				at least as long as dlat.
+     */
+    public void getDeclinations( double[] dlat, double[] dlong, double[] altitude, double year, double[] declinations )
+    {
+        for (int i = 0; i < dlat.length; i++)
+        {
+            calcGeoMag( dlat[i], dlong[i], year, altitude == null ? defaultAltitude : altitude[i] );
+            declinations[i] = dec;
+        }
+    }
+
     /**
      *	Returns the declination from the Department of
      *	Defense geomagnetic model and data, in degrees.  The
@@ -1181,49 +1194,6 @@ public class TSAGeoMag
         return  dip;
     }
 
-    /**	This method sets the input data to the internal fit coefficents.
-     *	If there is an exception reading the input file WMM.COF, these values
-     *	are used.
-     *
-     *  NOTE:  This method is not tested by the JUnit test, unless the WMM.COF file
-     *         is missing.
-     */
-    private void setCoeff()
-    {
-        c[0][0] = 0.0;
-        cd[0][0] = 0.0;
-
-        epoch = Double.parseDouble(input[0].trim().split("[\\s]+")[0]);
-        defaultDate = epoch + 2.5;
-
-        String [] tokens;
-
-        //loop to get data from internal values
-        for(int i=1; i<input.length; i++)
-        {
-            tokens = input[i].trim().split("[\\s]+");
-
-            int n = Integer.parseInt(tokens[0]);
-            int m = Integer.parseInt(tokens[1]);
-            double gnm = Double.parseDouble(tokens[2]);
-            double hnm = Double.parseDouble(tokens[3]);
-            double dgnm = Double.parseDouble(tokens[4]);
-            double dhnm = Double.parseDouble(tokens[5]);
-
-            if (m <= n)
-            {
-                c[m][n] = gnm;
-                cd[m][n] = dgnm;
-
-                if (m != 0)
-                {
-                    c[n][m-1] = hnm;
-                    cd[n][m-1] = dhnm;
-                }
-            }
-        }
-    }
-
     /**<p>
      *   Given a Gregorian Calendar object, this returns the decimal year
      *   value for the calendar, accurate to the day of the input calendar.
@@ -0,0 +1,60 @@
+import {NativeModules} from 'react-native';
+import type {HeadingSnapshot} from '@/modules/compass';
+
+const getLatestHeading = jest.fn<HeadingSnapshot | null, []>();
+
+NativeModules.CompassModule = {
+  getLatestHeading,
+  addListener: jest.fn(),
+  removeListeners: jest.fn(),
+  removeHeadingListener: jest.fn(),
+};
+
+// required after the native module is mocked, imports would be hoisted above it
+const {onHeadingFrame} =
+  require('@/modules/compass') as typeof import('@/modules/compass');
+
+let frames: FrameRequestCallback[] = [];
+
+function runFrame() {
+  const pending = frames;
+  frames = [];
+  pending.forEach(callback => callback(0));
+}
+
+describe('onHeadingFrame', () => {
+  beforeEach(() => {
+    frames = [];
+    getLatestHeading.mockReset();
+    global.requestAnimationFrame = (callback: FrameRequestCallback) =>
+      frames.push(callback);
+    global.cancelAnimationFrame = () => {
+      frames = [];
+    };
+  });
+
+  it('calls the listener only for frames with a new reading', () => {
+    const listener = jest.fn();
+    const stop = onHeadingFrame(listener);
+
+    getLatestHeading.mockReturnValue(null);
+    runFrame();
+    expect(listener).not.toHaveBeenCalled();
+
+    // the wall clock timestamp may differ between polls of the same reading
+    getLatestHeading.mockReturnValueOnce([10, 3, 1000.2, 5000]);
+    getLatestHeading.mockReturnValueOnce([10, 3, 1000.7, 5000]);
+    getLatestHeading.mockReturnValueOnce([12, 3, 1016.4, 5016]);
+    runFrame();
+    runFrame();
+    runFrame();
+    expect(listener).toHaveBeenCalledTimes(2);
+    expect(listener).toHaveBeenNthCalledWith(1, [10, 3, 1000.2, 5000]);
+    expect(listener).toHaveBeenNthCalledWith(2, [12, 3, 1016.4, 5016]);
+
+    stop();
+    getLatestHeading.mockReturnValue([14, 3, 1032, 5032]);
+    runFrame();
+    expect(listener).toHaveBeenCalledTimes(2);
+  });
+});
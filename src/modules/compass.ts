@@ -17,13 +17,39 @@ const CompassModule = NativeModules.CompassModule
 const eventEmitter = new NativeEventEmitter(CompassModule);
 
 type EventListener = (
-  eventType: 'accuracyChanged' | 'heading',
+  eventType:
+    | 'accuracyChanged'
+    | 'heading'
+    | 'headings'
+    | 'qiblaAngle'
+    | 'qiblaAngles'
+    | 'qiblaAligned'
+    | 'subscriptionHeading',
   listener: (event: any) => void,
 ) => ReturnType<typeof eventEmitter.addListener>;
 
-const addEventListener = eventEmitter.addListener.bind(
-  eventEmitter,
-) as EventListener;
+const HEADING_EVENTS = ['heading', 'headings', 'qiblaAngle', 'qiblaAngles'];
+
+/**
+ * native counts the listeners of heading events to run the sensor at the update rate only when
+ * needed, but `removeListeners` does not tell it which event a removed listener was for.
+ */
+const addEventListener = ((eventType, listener) => {
+  const sub = eventEmitter.addListener(eventType, listener);
+  if (!HEADING_EVENTS.includes(eventType)) {
+    return sub;
+  }
+  const remove = sub.remove.bind(sub);
+  let removed = false;
+  sub.remove = () => {
+    if (!removed) {
+      removed = true;
+      CompassModule.removeHeadingListener();
+    }
+    remove();
+  };
+  return sub;
+}) as EventListener;
 
 export const setCompassLocation = CompassModule.setLocation as (
   latitude: Number,
@@ -35,6 +61,201 @@ export const setUpdateRate = CompassModule.setUpdateRate as (
   rateInMs: Number,
 ) => void;
 
+/**
+ * lets the sensor batch readings for up to the given latency to save power.
+ * while enabled, readings are sent as `headings` events once per frame,
+ * with a flat array of [timestamp, heading, timestamp, heading, ...]. 0 disables batching.
+ */
+export const setBatching = CompassModule.setBatching as (
+  maxReportLatencyMs: Number,
+) => void;
+
+/**
+ * when enabled, `qiblaAngle` (and `qiblaAngles` when batching) events are emitted
+ * instead of `heading`, with the angle to turn towards the Qibla from -180 to 180,
+ * positive is clockwise. uses the location given to `setCompassLocation`.
+ * `qiblaAligned` is emitted with true when within `alignedDegrees` of the Qibla and with false
+ * when leaving it, with an optional vibration when getting aligned.
+ */
+export const setQiblaMode = CompassModule.setQiblaMode as (
+  enabled: boolean,
+  alignedDegrees: number,
+  haptics: boolean,
+) => void;
+
+/**
+ * [heading, accuracy, timestamp in ms, sensor timestamp in ms].
+ * the sensor timestamp is only comparable to itself, it changes with every new reading.
+ */
+export type HeadingSnapshot = [number, number, number, number];
+
+/**
+ * latest heading, read synchronously from native without going through events.
+ * the sensor only runs while there is at least one listener, e.g. for `accuracyChanged`.
+ */
+export const getLatestHeading =
+  CompassModule.getLatestHeading as () => HeadingSnapshot | null;
+
+/** turns `heading` and `headings` events off, for when the heading is polled instead */
+export const setHeadingEventsEnabled =
+  CompassModule.setHeadingEventsEnabled as (enabled: boolean) => void;
+
+/**
+ * calls the listener in animation frames that have a new heading, using `getLatestHeading`
+ * @returns function that stops polling
+ */
+export function onHeadingFrame(listener: (snapshot: HeadingSnapshot) => void) {
+  let lastSensorTimestamp = 0;
+  let frame = requestAnimationFrame(function poll() {
+    const snapshot = getLatestHeading();
+    if (snapshot && snapshot[3] !== lastSensorTimestamp) {
+      lastSensorTimestamp = snapshot[3];
+      listener(snapshot);
+    }
+    frame = requestAnimationFrame(poll);
+  });
+  return () => cancelAnimationFrame(frame);
+}
+
+/**
+ * time constant of the heading smoothing in ms, 0 disables it.
+ * based on sensor timestamps, so the smoothing is the same for any update rate.
+ */
+export const setSmoothing = CompassModule.setSmoothing as (
+  timeConstantMs: Number,
+) => void;
+
+export type SensorStrategy = 'precision' | 'lowPower' | 'fusion';
+
+/**
+ * sensors used for the heading. `precision` uses the gyroscope and is the most responsive,
+ * `lowPower` skips the gyroscope, and `fusion` uses the raw accelerometer and magnetometer.
+ * missing sensors fall back to the next available strategy.
+ */
+export const setSensorStrategy = CompassModule.setSensorStrategy as (
+  strategy: SensorStrategy,
+) => void;
+
+/** strategy in use after fallbacks, null when the compass is not running */
+export const getActiveSensorStrategy =
+  CompassModule.getActiveSensorStrategy as () => Promise<SensorStrategy | null>;
+
+/** when enabled, the sensor runs at a low rate while the device is not moving */
+export const setAdaptiveRate = CompassModule.setAdaptiveRate as (
+  enabled: boolean,
+) => void;
+
+/**
+ * headings that changed less than `degrees` since the last emitted heading are not sent,
+ * except once every `maxIntervalMs` (0 disables). no heading is sent sooner than `minIntervalMs`.
+ */
+export const setDeadBand = CompassModule.setDeadBand as (
+  degrees: Number,
+  minIntervalMs: Number,
+  maxIntervalMs: Number,
+) => void;
+
+/** number of headings suppressed by the dead-band since the last call */
+export const getSuppressedHeadingCount =
+  CompassModule.getSuppressedHeadingCount as () => Promise<number>;
+
+export type DeclinationCacheStats = {
+  hits: number;
+  misses: number;
+  size: number;
+};
+
+export const getDeclinationCacheStats =
+  CompassModule.getDeclinationCacheStats as () => Promise<DeclinationCacheStats>;
+
+export const resetDeclinationCache =
+  CompassModule.resetDeclinationCache as () => void;
+
+/** latest heading of a `headings` event */
+function lastHeading(samples: number[]) {
+  return samples[samples.length - 1];
+}
+
+/**
+ * calls the listener with the heading at most every `rateMs`, independent of `setUpdateRate`
+ * and of other subscribers. the sensor runs at the fastest rate anyone asked for.
+ * @returns function that removes the subscription
+ */
+export function subscribeHeading(
+  rateMs: number,
+  listener: (heading: number) => void,
+) {
+  let id: number | undefined;
+  let removed = false;
+  const sub = addEventListener(
+    'subscriptionHeading',
+    (event: {id: number; heading: number}) => {
+      if (event.id === id) {
+        listener(event.heading);
+      }
+    },
+  );
+  (CompassModule.subscribe(rateMs) as Promise<number>).then(subId => {
+    if (removed) {
+      CompassModule.unsubscribe(subId);
+    } else {
+      id = subId;
+    }
+  });
+  return () => {
+    removed = true;
+    if (id !== undefined) {
+      CompassModule.unsubscribe(id);
+    }
+    sub.remove();
+  };
+}
+
+export type HeadingOnceResult = {
+  heading: number;
+  accuracy: AccuracyLevel;
+  /** number of readings averaged */
+  samples: number;
+};
+
+/**
+ * circular mean of a few readings, without keeping the sensor running.
+ * rejects when there is no reading within `timeoutMs`.
+ */
+export const getHeadingOnce = CompassModule.getHeadingOnce as (
+  samples: number,
+  timeoutMs: number,
+) => Promise<HeadingOnceResult>;
+
+export type CompassStats = {
+  received: number;
+  throttled: number;
+  suppressed: number;
+  emitted: number;
+  /** per second */
+  receivedRate: number;
+  /** per second */
+  emittedRate: number;
+  /** per second, from setUpdateRate */
+  requestedRate: number;
+  averageLatencyMs: number;
+  maxLatencyMs: number;
+  /** upper bounds of the latency histogram buckets */
+  latencyBucketsMs: number[];
+  /** one more than `latencyBucketsMs`, the last is for latencies above the last bound */
+  latencyHistogram: number[];
+  averageUpdateMs: number;
+  maxUpdateMs: number;
+  registrations: number;
+  teardowns: number;
+};
+
+/** counters of the native sensor pipeline since the last reset, null if never started */
+export const getStats =
+  CompassModule.getStats as () => Promise<CompassStats | null>;
+
+export const resetStats = CompassModule.resetStats as () => void;
+
 export function useCompassHeading() {
   const [heading, setHeading] = useState(0);
 
@@ -42,7 +263,13 @@ export function useCompassHeading() {
     const sub = addEventListener('heading', (degrees: number) => {
       setHeading(degrees);
     });
-    return () => sub.remove();
+    const batchSub = addEventListener('headings', (samples: number[]) => {
+      setHeading(lastHeading(samples));
+    });
+    return () => {
+      sub.remove();
+      batchSub.remove();
+    };
   }, []);
 
   return heading;
@@ -55,7 +282,13 @@ export function useCompassHeadingRef() {
     const sub = addEventListener('heading', (degrees: number) => {
       heading.current = degrees;
     });
-    return () => sub.remove();
+    const batchSub = addEventListener('headings', (samples: number[]) => {
+      heading.current = lastHeading(samples);
+    });
+    return () => {
+      sub.remove();
+      batchSub.remove();
+    };
   }, []);
 
   return heading;
@@ -100,5 +333,22 @@ export default {
   useCompassHeading,
   useCompassHeadingRef,
   setUpdateRate,
+  setBatching,
+  setQiblaMode,
+  getLatestHeading,
+  setHeadingEventsEnabled,
+  onHeadingFrame,
+  setSmoothing,
+  setSensorStrategy,
+  getActiveSensorStrategy,
+  setAdaptiveRate,
+  setDeadBand,
+  getSuppressedHeadingCount,
   isCompassAvailable,
+  getDeclinationCacheStats,
+  resetDeclinationCache,
+  getStats,
+  resetStats,
+  subscribeHeading,
+  getHeadingOnce,
 };
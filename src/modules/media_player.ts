@@ -50,10 +50,46 @@ export function isIntrusive(entry: AudioEntry | undefined) {
   return !isSilent(entry) && !entry?.notif;
 }
 
+/** sent after start, with the time from `setDataSource` to the first audio frame */
+export type StartLatencyEvent = {
+  /** from the `setDataSource` call to the first audio frame */
+  latencyMs: number;
+  /** from `triggerTimeMs` given to `setDataSource` to the first audio frame, when given */
+  triggerLatencyMs?: number;
+  /** short sounds are kept decoded in memory and played without MediaPlayer */
+  shortClip: boolean;
+};
+
+export type RampVolumeOptions = {
+  /** level to start from, from 0 to 1. defaults to the current level */
+  from?: number;
+  /** level to reach, from 0 to 1, on top of the volume given to `setVolume` */
+  to: number;
+  durationMs: number;
+  /** `perceptual` sounds more even than `linear`. default: `linear` */
+  curve?: 'linear' | 'perceptual';
+  /** stops playback when the ramp is done, for fading out */
+  stopWhenDone?: boolean;
+};
+
+/** sent with `queue_item_started`, `queue_item_completed` and `queue_item_error` */
+export type QueueItemEvent = {
+  /** index of the item in the list given to `setQueue` */
+  index: number;
+};
+
+/** sent when a volume ramp ends, or is cancelled by another ramp, stop or a new source */
+export type VolumeRampCompletedEvent = {
+  level: number;
+  cancelled: boolean;
+};
+
 export type SetDataSourceOptions = {
   uri: string | number;
   loop: boolean;
   preferExternalDevice?: boolean;
+  /** when the alarm that plays the sound was due, to report the start latency from it */
+  triggerTimeMs?: number;
 };
 
 interface MediaPlayerModuleInterface {
@@ -63,7 +99,13 @@ interface MediaPlayerModuleInterface {
   setupPlayer(): Promise<void>;
   destroy(): Promise<void>;
   setVolume(value: number): Promise<void>;
+  rampVolume(options: RampVolumeOptions): Promise<void>;
   setDataSource(options?: SetDataSourceOptions): Promise<void>;
+  setQueue(
+    items: {uri: string | number}[],
+    preferExternalDevice: boolean,
+  ): Promise<void>;
+  cacheSound(options: {uri: string | number}): Promise<void>;
   getState(): Promise<PlaybackState>;
   getRingtones(): Promise<AudioEntry[]>;
   addListener(eventName: string): void;
@@ -71,7 +113,16 @@ interface MediaPlayerModuleInterface {
 }
 
 type EventListener = (
-  eventType: 'error' | 'completed' | 'state' | 'audio_focus_change',
+  eventType:
+    | 'error'
+    | 'completed'
+    | 'state'
+    | 'audio_focus_change'
+    | 'start_latency'
+    | 'volume_ramp_completed'
+    | 'queue_item_started'
+    | 'queue_item_completed'
+    | 'queue_item_error',
   listener: (event: any) => void,
 ) => ReturnType<typeof eventEmitter.addListener>;
 
@@ -80,14 +131,51 @@ const stop = MediaPlayerModule.stop;
 const pause = MediaPlayerModule.pause;
 const setupPlayer = MediaPlayerModule.setupPlayer;
 const destroy = MediaPlayerModule.destroy;
+/** volume of the current source, from 0 to 1. `setDataSource` and `setQueue` reset it to 1 */
 const setVolume = MediaPlayerModule.setVolume;
+/** changes the volume gradually in native, call after `start` */
+const rampVolume = MediaPlayerModule.rampVolume;
+const fadeIn = (durationMs: number, to = 1) =>
+  rampVolume({from: 0, to, durationMs, curve: 'perceptual'});
+const fadeOut = (durationMs: number, stopWhenDone = true) =>
+  rampVolume({to: 0, durationMs, curve: 'perceptual', stopWhenDone});
 const setDataSource = async (options: SetDataSourceOptions) => {
-  let {uri, loop, preferExternalDevice = false} = options;
+  let {uri, loop, preferExternalDevice = false, triggerTimeMs = 0} = options;
   if (typeof options.uri === 'number') {
     const resolved = Image.resolveAssetSource(options.uri);
     uri = resolved.uri;
   }
-  return MediaPlayerModule.setDataSource({uri, loop, preferExternalDevice});
+  return MediaPlayerModule.setDataSource({
+    uri,
+    loop,
+    preferExternalDevice,
+    triggerTimeMs,
+  });
+};
+/**
+ * decodes the sound once in the background and keeps it in app storage,
+ * so that playing it at alarm time needs no decoding
+ */
+export const cacheSound = async (uri: string | number) => {
+  if (typeof uri === 'number') {
+    uri = Image.resolveAssetSource(uri).uri;
+  }
+  return MediaPlayerModule.cacheSound({uri});
+};
+/**
+ * like `setDataSource`, but for sounds that play one after the other without gaps.
+ * the next sound is prepared natively while the current one plays, so transitions do not
+ * wait for JS. `completed` is sent after the last item. items do not loop.
+ * an item that fails to open or to play sends `queue_item_error` and is skipped.
+ */
+const setQueue = async (
+  uris: (string | number)[],
+  {preferExternalDevice = false}: {preferExternalDevice?: boolean} = {},
+) => {
+  const items = uris.map(uri => ({
+    uri: typeof uri === 'number' ? Image.resolveAssetSource(uri).uri : uri,
+  }));
+  return MediaPlayerModule.setQueue(items, preferExternalDevice);
 };
 const getState = MediaPlayerModule.getState;
 const addEventListener = eventEmitter.addListener.bind(
@@ -142,7 +230,12 @@ export default {
   setupPlayer,
   destroy,
   setVolume,
+  rampVolume,
+  fadeIn,
+  fadeOut,
   setDataSource,
+  setQueue,
+  cacheSound,
   addEventListener,
   eventEmitter,
   usePlaybackState,
@@ -350,7 +350,10 @@ export function setupNotifeeHandlers() {
 
         let interrupted = false;
         if (!isDnd || settings.getState().BYPASS_DND) {
-          interrupted = await playAudio(options!.sound!);
+          interrupted = await playAudio(
+            options!.sound!,
+            options!.date.getTime(),
+          );
         }
         await cancelAlarmNotif({
           notification,
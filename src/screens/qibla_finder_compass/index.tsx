@@ -23,6 +23,7 @@ import {LocationSearchingIcon} from '@/assets/icons/material_icons/location_sear
 import {MyLocationIcon} from '@/assets/icons/material_icons/my_location';
 import {SafeArea} from '@/components/safe_area';
 import CompassMod, {
+  setAdaptiveRate,
   setCompassLocation,
   setUpdateRate,
   useCompassAccuracy,
@@ -115,6 +116,7 @@ export function QiblaCompass({route}: Props) {
 
   useEffect(() => {
     setUpdateRate(20);
+    setAdaptiveRate(true);
     const sub = CompassMod.addListener('heading', degrees => {
       compassImgRef.current?.setNativeProps({
         transform: [
@@ -134,7 +136,10 @@ export function QiblaCompass({route}: Props) {
         text: Math.round(degrees) + '\u00B0', // deg symbol
       });
     });
-    return () => sub.remove();
+    return () => {
+      sub.remove();
+      setAdaptiveRate(false);
+    };
   }, []);
 
   return (
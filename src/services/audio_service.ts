@@ -2,8 +2,11 @@ import {AudioEntry} from '@/modules/media_player';
 import {destroy, play, stop} from '@/services/play_sound';
 import {settings} from '@/store/settings';
 
-/** returns `true` if interrupted during play, `false` otherwise */
-export async function playAudio(audio: AudioEntry) {
+/**
+ * returns `true` if interrupted during play, `false` otherwise.
+ * `triggerTimeMs` is when the alarm playing the audio was due, for the start latency.
+ */
+export async function playAudio(audio: AudioEntry, triggerTimeMs?: number) {
   const settingsState = settings.getState();
 
   if (settingsState.IS_PLAYING_AUDIO) {
@@ -14,6 +17,7 @@ export async function playAudio(audio: AudioEntry) {
     audioEntry: audio,
     volumeBtnInterrupts: settingsState.VOLUME_BUTTON_STOPS_ADHAN,
     preferExternalDevice: settingsState.PREFER_EXTERNAL_AUDIO_DEVICE,
+    triggerTimeMs,
   });
   settings.setState({IS_PLAYING_AUDIO: false});
 
@@ -3,6 +3,7 @@ import SystemSetting from 'react-native-system-setting';
 import MediaPlayer, {
   AudioEntry,
   onVolumeBtnPressed,
+  StartLatencyEvent,
 } from '@/modules/media_player';
 
 /** returns `true` if interrupted during play, `false` otherwise */
@@ -10,10 +11,13 @@ export async function play({
   audioEntry,
   volumeBtnInterrupts,
   preferExternalDevice,
+  triggerTimeMs,
 }: {
   audioEntry: AudioEntry;
   volumeBtnInterrupts?: boolean;
   preferExternalDevice?: boolean;
+  /** when the alarm playing the sound was due */
+  triggerTimeMs?: number;
 }) {
   try {
     await MediaPlayer.setupPlayer();
@@ -35,6 +39,13 @@ export async function play({
       onFinally(interrupted);
     },
   );
+  const latencySub = MediaPlayer.addEventListener(
+    'start_latency',
+    (event: StartLatencyEvent) => {
+      latencySub.remove();
+      console.log('MediaPlayer start latency: ', event);
+    },
+  );
   const errorSub = MediaPlayer.addEventListener('error', err => {
     errorSub.remove();
     console.error('MediaPlayer Error: ', err);
@@ -59,6 +70,7 @@ export async function play({
     volumeListener.remove();
     endSub.remove();
     errorSub.remove();
+    latencySub.remove();
     onVolumeBtnPressed(undefined);
   };
 
@@ -67,6 +79,7 @@ export async function play({
       uri: audioEntry.filepath,
       loop: !!audioEntry.loop,
       preferExternalDevice,
+      triggerTimeMs,
     });
     await MediaPlayer.start();
     const playbackResult = await playbackFinishedDefer;
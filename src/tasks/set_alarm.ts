@@ -8,7 +8,12 @@ import notifee, {
 } from '@notifee/react-native';
 import {Prayer} from '@/adhan';
 import {VibrationMode} from '@/modules/activity';
-import {AudioEntry, isIntrusive, isSilent} from '@/modules/media_player';
+import {
+  AudioEntry,
+  cacheSound,
+  isIntrusive,
+  isSilent,
+} from '@/modules/media_player';
 
 export type SetAlarmTaskOptions = {
   /** notification id */
@@ -116,4 +121,9 @@ export async function setAlarmTask(options: SetAlarmTaskOptions) {
     },
     trigger,
   );
+
+  if (intrusive && sound) {
+    // decoded ahead of time, so the alarm does not have to
+    cacheSound(sound.filepath).catch(console.error);
+  }
 }